@@ -0,0 +1,50 @@
+/*
+ * 文件名：ChainedTransactionListener.java
+ * 描述： ChainedTransactionListener.java
+ * 修改人：zhengmo
+ * 修改时间：2015年10月28日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction;
+
+import org.springframework.transaction.HeuristicCompletionException;
+
+/**
+ * 链式事务监听器.
+ *
+ * <pre>
+ * 由{@link ChainedTransactionManager}在事务执行线程上同步回调,实现必须快速且不能抛出异常.
+ * slot为参与者在链上的下标,耗时单位为纳秒.
+ * </pre>
+ * @author zhengmo
+ */
+public interface ChainedTransactionListener {
+    /**
+     * 参与者开启事务后.
+     * @param slot 槽位
+     * @param nanos 耗时
+     * @param success 是否成功
+     */
+    void afterBegin(int slot, long nanos, boolean success);
+    /**
+     * 参与者提交后.
+     * @param slot 槽位
+     * @param nanos 耗时
+     * @param success 是否成功
+     */
+    void afterCommit(int slot, long nanos, boolean success);
+    /**
+     * 参与者回滚后.
+     * @param slot 槽位
+     * @param nanos 耗时
+     * @param success 是否成功
+     */
+    void afterRollback(int slot, long nanos, boolean success);
+    /**
+     * 整个链式事务结束后.
+     * @param nanos 从开启到结束的耗时
+     * @param state {@link HeuristicCompletionException#STATE_COMMITTED},{@link HeuristicCompletionException#STATE_ROLLED_BACK}或{@link HeuristicCompletionException#STATE_MIXED}
+     * @param rollbacksAfterCommitFailure 提交失败后回滚的参与者数量
+     */
+    void afterCompletion(long nanos, int state, int rollbacksAfterCommitFailure);
+}
@@ -15,13 +15,13 @@
  */
 package com.zhengmo.data.transaction;
 
-import static java.util.Arrays.asList;
-
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.List;
+import java.sql.Connection;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +41,23 @@ import org.springframework.util.Assert;
  * The configured instances will start transactions in the order given and commit/rollback in <em>reverse</em> order, which means the {@link PlatformTransactionManager} most likely to break the
  * transaction should be the <em>last</em> in the list configured. A {@link PlatformTransactionManager} throwing an exception during commit will automatically cause the remaining transaction managers
  * to roll back instead of committing.
+ * <p />
+ * With {@link #setLazyEnlistment(boolean) lazy enlistment} enabled no delegate transaction is started by {@link #getTransaction(TransactionDefinition)}; a delegate joins the chain on its first
+ * {@link #enlist(TransactionStatus, PlatformTransactionManager)} call, and commit/rollback only cover the enlisted delegates in <em>reverse</em> enlistment order. A delegate enlisted while
+ * savepoints of the chain are open gets a savepoint for each of them on enlistment, so rolling back to a savepoint also rolls back work of delegates enlisted after it was created.
+ * <p />
+ * With a {@link #setRollbackExecutor(Executor) rollback executor} configured, a rollback first rolls back the JDBC connections of all enlisted delegates in parallel on that executor, so that row
+ * locks on healthy shards are released without waiting for slow ones; the delegates then complete their rollback (synchronizations, connection release) in <em>reverse</em> order on the calling
+ * thread as before.
+ * <p />
+ * A {@link TransactionDefinition#getTimeout() timeout} on the definition is a deadline for the whole chain: every delegate begins with the time remaining until that deadline as its own
+ * timeout, and no delegate is enlisted once it has passed.
+ * <p />
+ * Callbacks registered through {@link #registerFlushCallback(TransactionStatus, Runnable)} run on {@link TransactionStatus#flush()} and once more before the first delegate commits; a callback
+ * failing before commit rolls back the whole chain.
+ * <p />
+ * With a {@link #setCommitJournal(CommitJournal, String...) commit journal} configured, the commit of a chain with more than one delegate records the enlistment order and every delegate's
+ * commit/rollback outcome, so that chains left {@link HeuristicCompletionException#STATE_MIXED mixed} or interrupted by a crash can be found and compensated at startup.
  * 
  * @author Michael Hunger
  * @author Oliver Gierke
@@ -53,13 +70,37 @@ public class ChainedTransactionManager implements PlatformTransactionManager {
      */
     private static final Logger LOGGER = LoggerFactory.getLogger(ChainedTransactionManager.class);
     /**
-     * 事务控制器集合.
+     * 事务控制器集合,构造时固定.
+     */
+    private final PlatformTransactionManager[] transactionManagers;
+    /**
+     * 事务控制器与槽位(即在链上的下标).
      */
-    private final List<PlatformTransactionManager> transactionManagers;
+    private final Map<PlatformTransactionManager, Integer> slots;
     /**
      * 事务同步管理器.
      */
     private final SynchronizationManager synchronizationManager;
+    /**
+     * 是否延迟加入事务.
+     */
+    private boolean lazyEnlistment = false;
+    /**
+     * 监听器.
+     */
+    private ChainedTransactionListener transactionListener;
+    /**
+     * 并行回滚执行器,为null时不并行.
+     */
+    private Executor rollbackExecutor;
+    /**
+     * 提交日志,为null时不记录.
+     */
+    private CommitJournal commitJournal;
+    /**
+     * 提交日志中按槽位排列的参与者名称.
+     */
+    private byte[][] journalNames;
     /**
      * Creates a new {@link ChainedTransactionManager} delegating to the given {@link PlatformTransactionManager}s.
      * 
@@ -79,7 +120,11 @@ public class ChainedTransactionManager implements PlatformTransactionManager {
         Assert.notNull(transactionManagers, "Transaction managers must not be null!");
         Assert.isTrue(transactionManagers.length > 0, "At least one PlatformTransactionManager must be given!");
         this.synchronizationManager = synchronizationManager;
-        this.transactionManagers = asList(transactionManagers);
+        this.transactionManagers = transactionManagers.clone();
+        this.slots = new IdentityHashMap<PlatformTransactionManager, Integer>();
+        for (int slot = 0; slot < this.transactionManagers.length; slot++) {
+            this.slots.put(this.transactionManagers[slot], slot);
+        }
     }
     /*
      * (non-Javadoc)
@@ -88,35 +133,66 @@ public class ChainedTransactionManager implements PlatformTransactionManager {
     @Override
     public void commit(TransactionStatus status) throws TransactionException {
         MultiTransactionStatus multiTransactionStatus = (MultiTransactionStatus) status;
+        try {
+            multiTransactionStatus.runFlushCallbacks();
+        } catch (RuntimeException ex) {
+            rollbackOnFlushException(multiTransactionStatus, ex);
+            throw ex;
+        } catch (Error err) {
+            rollbackOnFlushException(multiTransactionStatus, err);
+            throw err;
+        }
         boolean commit = true;
         Exception commitException = null;
-        PlatformTransactionManager commitExceptionTransactionManager = null;
-        for (PlatformTransactionManager transactionManager : reverse(transactionManagers)) {
+        int commitExceptionSlot = -1;
+        int rollbacksAfterCommitFailure = 0;
+        int enlistedCount = multiTransactionStatus.getEnlistedCount();
+        CommitJournal journal = commitJournal;
+        long chainId = journal != null && enlistedCount > 1 && !multiTransactionStatus.getDefinition().isReadOnly() ? journal.begin(journalNames, multiTransactionStatus) : 0L;
+        for (int i = enlistedCount - 1; i >= 0; i--) {
+            int slot = multiTransactionStatus.getEnlistedSlot(i);
+            int outcome;
             if (commit) {
                 try {
-                    multiTransactionStatus.commit(transactionManager);
+                    multiTransactionStatus.commit(slot);
+                    outcome = CommitJournal.COMMITTED;
                 } catch (Exception ex) {
                     commit = false;
                     commitException = ex;
-                    commitExceptionTransactionManager = transactionManager;
+                    commitExceptionSlot = slot;
+                    outcome = CommitJournal.COMMIT_FAILED;
                 }
             } else {
                 // after unsucessfull commit we must try to rollback remaining transaction managers
+                rollbacksAfterCommitFailure++;
                 try {
-                    multiTransactionStatus.rollback(transactionManager);
+                    multiTransactionStatus.rollback(slot);
+                    outcome = CommitJournal.ROLLED_BACK;
                 } catch (Exception ex) {
-                    LOGGER.warn("Rollback exception (after commit) (" + transactionManager + ") " + ex.getMessage(), ex);
+                    LOGGER.warn("Rollback exception (after commit) (" + transactionManagers[slot] + ") " + ex.getMessage(), ex);
+                    outcome = CommitJournal.ROLLBACK_FAILED;
                 }
             }
+            if (chainId != 0L) {
+                journal.outcome(chainId, i, outcome);
+            }
         }
         if (multiTransactionStatus.isNewSynchonization()) {
             synchronizationManager.clearSynchronization();
         }
         if (commitException != null) {
-            boolean firstTransactionManagerFailed = commitExceptionTransactionManager == getLastTransactionManager();
+            boolean firstTransactionManagerFailed = commitExceptionSlot == multiTransactionStatus.getEnlistedSlot(enlistedCount - 1);
             int transactionState = firstTransactionManagerFailed ? HeuristicCompletionException.STATE_ROLLED_BACK : HeuristicCompletionException.STATE_MIXED;
+            if (chainId != 0L) {
+                journal.complete(chainId, transactionState);
+            }
+            multiTransactionStatus.complete(transactionState, rollbacksAfterCommitFailure);
             throw new HeuristicCompletionException(transactionState, commitException);
         }
+        if (chainId != 0L) {
+            journal.complete(chainId, HeuristicCompletionException.STATE_COMMITTED);
+        }
+        multiTransactionStatus.complete(HeuristicCompletionException.STATE_COMMITTED, 0);
     }
     /*
      * (non-Javadoc)
@@ -124,29 +200,32 @@ public class ChainedTransactionManager implements PlatformTransactionManager {
      */
     @Override
     public MultiTransactionStatus getTransaction(TransactionDefinition definition) throws TransactionException {
-        MultiTransactionStatus mts = new MultiTransactionStatus(transactionManagers.get(0));
+        MultiTransactionStatus mts = new MultiTransactionStatus(definition, transactionManagers, transactionListener);
         if (!synchronizationManager.isSynchronizationActive()) {
             synchronizationManager.initSynchronization();
             mts.setNewSynchonization();
         }
+        if (lazyEnlistment) {
+            return mts;
+        }
         try {
-            for (PlatformTransactionManager transactionManager : transactionManagers) {
-                mts.registerTransactionManager(definition, transactionManager);
+            for (int slot = 0; slot < transactionManagers.length; slot++) {
+                mts.registerTransactionManager(definition, slot);
             }
         } catch (Exception ex) {
-            Map<PlatformTransactionManager, TransactionStatus> transactionStatuses = mts.getTransactionStatuses();
-            for (PlatformTransactionManager transactionManager : transactionManagers) {
+            rollbackConnectionsInParallel(mts, rollbackExecutor);
+            for (int i = 0; i < mts.getEnlistedCount(); i++) {
+                int slot = mts.getEnlistedSlot(i);
                 try {
-                    if (transactionStatuses.get(transactionManager) != null) {
-                        transactionManager.rollback(transactionStatuses.get(transactionManager));
-                    }
+                    mts.rollback(slot);
                 } catch (Exception ex2) {
-                    LOGGER.warn("Rollback exception (" + transactionManager + ") " + ex2.getMessage(), ex2);
+                    LOGGER.warn("Rollback exception (" + transactionManagers[slot] + ") " + ex2.getMessage(), ex2);
                 }
             }
             if (mts.isNewSynchonization()) {
                 synchronizationManager.clearSynchronization();
             }
+            mts.complete(HeuristicCompletionException.STATE_ROLLED_BACK, 0);
             throw new CannotCreateTransactionException(ex.getMessage(), ex);
         }
         return mts;
@@ -157,51 +236,218 @@ public class ChainedTransactionManager implements PlatformTransactionManager {
      */
     @Override
     public void rollback(TransactionStatus status) throws TransactionException {
+        rollback(status, rollbackExecutor);
+    }
+    /**
+     * 回滚,各参与者的连接先在指定执行器上并行回滚,如超过截止时间的事务需要尽快释放全部锁.
+     * @param status {@link #getTransaction(TransactionDefinition)}返回的事务状态
+     * @param executor 并行回滚执行器,为null时按倒序逐个回滚
+     * @throws TransactionException 异常
+     */
+    public void rollback(TransactionStatus status, Executor executor) throws TransactionException {
         Exception rollbackException = null;
         PlatformTransactionManager rollbackExceptionTransactionManager = null;
         MultiTransactionStatus multiTransactionStatus = (MultiTransactionStatus) status;
-        for (PlatformTransactionManager transactionManager : reverse(transactionManagers)) {
+        rollbackConnectionsInParallel(multiTransactionStatus, executor);
+        for (int i = multiTransactionStatus.getEnlistedCount() - 1; i >= 0; i--) {
+            int slot = multiTransactionStatus.getEnlistedSlot(i);
             try {
-                multiTransactionStatus.rollback(transactionManager);
+                multiTransactionStatus.rollback(slot);
             } catch (Exception ex) {
                 if (rollbackException == null) {
                     rollbackException = ex;
-                    rollbackExceptionTransactionManager = transactionManager;
+                    rollbackExceptionTransactionManager = transactionManagers[slot];
                 } else {
-                    LOGGER.warn("Rollback exception (" + transactionManager + ") " + ex.getMessage(), ex);
+                    LOGGER.warn("Rollback exception (" + transactionManagers[slot] + ") " + ex.getMessage(), ex);
                 }
             }
         }
         if (multiTransactionStatus.isNewSynchonization()) {
             synchronizationManager.clearSynchronization();
         }
+        multiTransactionStatus.complete(HeuristicCompletionException.STATE_ROLLED_BACK, 0);
         if (rollbackException != null) {
             throw new UnexpectedRollbackException("Rollback exception, originated at (" + rollbackExceptionTransactionManager + ") " + rollbackException.getMessage(), rollbackException);
         }
     }
     /**
-     * 获取最后一个事务控制器.
-     * @return 事务控制器
+     * 提交前刷新失败,回滚全部事务. 回滚也失败时抛出回滚异常.
+     * @param status 事务状态
+     * @param ex 刷新异常
+     */
+    private void rollbackOnFlushException(MultiTransactionStatus status, Throwable ex) {
+        try {
+            rollback(status);
+        } catch (TransactionException ex2) {
+            LOGGER.error("Flush exception overridden by rollback exception", ex);
+            throw ex2;
+        }
+    }
+    /**
+     * 在回滚执行器上并行回滚各参与者的JDBC连接并等待全部完成.
+     *
+     * <pre>
+     * 只回滚连接本身以尽快释放锁,事务同步与资源解绑依赖当前线程,仍由调用方按倒序交给各事务管理器完成.
+     * 这里的异常只记录日志,各事务管理器随后的回滚会再次暴露同样的问题并按原有方式报告.
+     * </pre>
+     * @param mts 事务状态
+     * @param executor 执行器
+     */
+    private void rollbackConnectionsInParallel(MultiTransactionStatus mts, Executor executor) {
+        int enlistedCount = mts.getEnlistedCount();
+        if (executor == null || enlistedCount < 2) {
+            return;
+        }
+        FutureTask<?>[] tasks = new FutureTask<?>[enlistedCount];
+        for (int i = 0; i < enlistedCount; i++) {
+            final int slot = mts.getEnlistedSlot(i);
+            final Connection connection = mts.getJdbcConnection(slot);
+            tasks[i] = new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (connection != null) {
+                            connection.rollback();
+                        }
+                    } catch (Exception ex) {
+                        LOGGER.warn("Parallel rollback exception (" + transactionManagers[slot] + ") " + ex.getMessage(), ex);
+                    }
+                }
+            }, null);
+            try {
+                executor.execute(tasks[i]);
+            } catch (RejectedExecutionException ex) {
+                // 由调用线程执行
+            }
+        }
+        // 尚未被执行器取走的任务直接在调用线程执行,执行器与链式事务共用线程池且已占满时也不会互相等待
+        for (FutureTask<?> task : tasks) {
+            task.run();
+        }
+        boolean interrupted = false;
+        for (FutureTask<?> task : tasks) {
+            while (true) {
+                try {
+                    task.get();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    /**
+     * 将事务管理器加入事务,已加入的直接返回. 仅在延迟加入模式下需要调用.
+     * @param status {@link #getTransaction(TransactionDefinition)}返回的事务状态
+     * @param transactionManager 链上的事务管理器
+     */
+    public void enlist(TransactionStatus status, PlatformTransactionManager transactionManager) {
+        Integer slot = slots.get(transactionManager);
+        Assert.notNull(slot, "TransactionManager is not part of the chain!");
+        enlist(status, slot.intValue());
+    }
+    /**
+     * 将指定槽位(即构造时的下标)的事务管理器加入事务,已加入的直接返回.
+     * @param status {@link #getTransaction(TransactionDefinition)}返回的事务状态
+     * @param slot 槽位
+     */
+    public void enlist(TransactionStatus status, int slot) {
+        Assert.isTrue(slot >= 0 && slot < transactionManagers.length, "TransactionManager is not part of the chain!");
+        MultiTransactionStatus multiTransactionStatus = (MultiTransactionStatus) status;
+        if (!multiTransactionStatus.isRegistered(slot)) {
+            multiTransactionStatus.registerTransactionManager(multiTransactionStatus.getDefinition(), slot);
+        }
+    }
+    /**
+     * 指定槽位的事务管理器是否已加入事务.
+     * @param status {@link #getTransaction(TransactionDefinition)}返回的事务状态
+     * @param slot 槽位
+     * @return boolean
+     */
+    public boolean isEnlisted(TransactionStatus status, int slot) {
+        return ((MultiTransactionStatus) status).isRegistered(slot);
+    }
+    /**
+     * 注册刷新回调,在{@link TransactionStatus#flush()}和提交前执行,如刷新批量语句.
+     * @param status {@link #getTransaction(TransactionDefinition)}返回的事务状态
+     * @param callback 回调
      */
-    private PlatformTransactionManager getLastTransactionManager() {
-        return transactionManagers.get(lastTransactionManagerIndex());
+    public void registerFlushCallback(TransactionStatus status, Runnable callback) {
+        Assert.notNull(callback, "Flush callback must not be null!");
+        ((MultiTransactionStatus) status).registerFlushCallback(callback);
     }
     /**
-     * 获取最后索引.
-     * @return 索引值
+     * 是否延迟加入事务.
+     * @return boolean
      */
-    private int lastTransactionManagerIndex() {
-        return transactionManagers.size() - 1;
+    public boolean isLazyEnlistment() {
+        return lazyEnlistment;
     }
     /**
-     * 倒序List.
-     * @param collection 集合
-     * @param <T> 集合
-     * @return list
+     * 设置是否延迟加入事务.
+     * @param lazyEnlistment true 事务管理器在首次{@link #enlist(TransactionStatus, PlatformTransactionManager)}时才开启事务
      */
-    private <T> Iterable<T> reverse(Collection<T> collection) {
-        List<T> list = new ArrayList<T>(collection);
-        Collections.reverse(list);
-        return list;
+    public void setLazyEnlistment(boolean lazyEnlistment) {
+        this.lazyEnlistment = lazyEnlistment;
+    }
+    /**
+     * 获取监听器.
+     * @return 监听器
+     */
+    public ChainedTransactionListener getTransactionListener() {
+        return transactionListener;
+    }
+    /**
+     * 设置监听器,为null时不做任何计时.
+     * @param transactionListener 监听器
+     */
+    public void setTransactionListener(ChainedTransactionListener transactionListener) {
+        this.transactionListener = transactionListener;
+    }
+    /**
+     * 获取并行回滚执行器.
+     * @return 执行器
+     */
+    public Executor getRollbackExecutor() {
+        return rollbackExecutor;
+    }
+    /**
+     * 设置并行回滚执行器,为null时按倒序逐个回滚.
+     * @param rollbackExecutor 执行器
+     */
+    public void setRollbackExecutor(Executor rollbackExecutor) {
+        this.rollbackExecutor = rollbackExecutor;
+    }
+    /**
+     * 获取提交日志.
+     * @return 提交日志
+     */
+    public CommitJournal getCommitJournal() {
+        return commitJournal;
+    }
+    /**
+     * 设置提交日志,为null时不记录. 只有两个及以上参与者的读写事务在提交时记录.
+     * @param commitJournal 提交日志
+     * @param participantNames 按槽位排列的参与者名称,恢复时用于识别参与者;为null时使用槽位
+     * @throws IllegalArgumentException 全部参与者的提交开始记录超过分段大小
+     */
+    public void setCommitJournal(CommitJournal commitJournal, String... participantNames) {
+        String[] names = participantNames;
+        if (names == null || names.length == 0) {
+            names = new String[transactionManagers.length];
+            for (int slot = 0; slot < names.length; slot++) {
+                names[slot] = "slot-" + slot;
+            }
+        }
+        Assert.isTrue(names.length == transactionManagers.length, "Participant names must match the transaction managers!");
+        byte[][] encoded = CommitJournal.encode(names);
+        Assert.isTrue(commitJournal == null || commitJournal.fits(encoded), "Participant names do not fit in a commit journal segment!");
+        this.journalNames = encoded;
+        this.commitJournal = commitJournal;
     }
 }
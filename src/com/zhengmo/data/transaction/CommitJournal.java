@@ -0,0 +1,773 @@
+/*
+ * 文件名：CommitJournal.java
+ * 描述： CommitJournal.java
+ * 修改人：zhengmo
+ * 修改时间：2015年11月16日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.HeuristicCompletionException;
+
+/**
+ * 链式事务提交日志.
+ *
+ * <pre>
+ * 只追加,写入内存映射的分段文件,由{@link ChainedTransactionManager}在提交时记录: 提交开始(链id,参与者按加入顺序的名称),
+ * 每个参与者的提交/回滚结果,整个链的结束状态. 写入只是内存拷贝,由后台线程每syncInterval统一force到磁盘(组刷盘),
+ * 进程崩溃不丢记录,操作系统崩溃最多丢失最后一个刷盘周期内的记录.
+ * 每条记录带魔数与校验和,按8字节对齐,扫描时跳过残缺记录.
+ * 启动时用{@link #recover(Compensator)}找出未结束或结果不一致(STATE_MIXED)的链,交给补偿器处理;处理成功的链记为已解决.
+ * 分段写满后切换到新分段,较早的分段在其中开始的链全部一致结束后删除;存在未解决的链时保留到下次恢复.
+ * 已解决记录写在当前分段,恢复的分段未删除前该分段不会被删除,下次恢复时与旧分段一起读取.
+ * </pre>
+ * @author zhengmo
+ */
+public class CommitJournal implements Closeable {
+    /**
+     * 未正常结束的链.
+     * @author zhengmo
+     */
+    public static final class IncompleteChain {
+        /**
+         * 链id.
+         */
+        private final long chainId;
+        /**
+         * 提交开始时间.
+         */
+        private final long beginMillis;
+        /**
+         * 参与者名称,按加入顺序.
+         */
+        private final List<String> participants;
+        /**
+         * 参与者结果,按加入顺序,未记录为0.
+         */
+        private final int[] outcomes;
+        /**
+         * 链的结束状态,未结束为-1.
+         */
+        private int state = -1;
+        /**
+         * 构造函数.
+         * @param chainId 链id
+         * @param beginMillis 提交开始时间
+         * @param participants 参与者名称
+         */
+        IncompleteChain(long chainId, long beginMillis, List<String> participants) {
+            this.chainId = chainId;
+            this.beginMillis = beginMillis;
+            this.participants = participants;
+            this.outcomes = new int[participants.size()];
+        }
+        /**
+         * @return 链id
+         */
+        public long getChainId() {
+            return chainId;
+        }
+        /**
+         * @return 提交开始时间
+         */
+        public long getBeginMillis() {
+            return beginMillis;
+        }
+        /**
+         * @return 参与者名称,按加入顺序;提交按倒序进行
+         */
+        public List<String> getParticipants() {
+            return participants;
+        }
+        /**
+         * @return 链的结束状态({@link HeuristicCompletionException}的STATE_*),进程在提交中途退出时为-1
+         */
+        public int getState() {
+            return state;
+        }
+        /**
+         * @return 已提交的参与者
+         */
+        public List<String> getCommitted() {
+            return select(COMMITTED);
+        }
+        /**
+         * @return 已回滚的参与者
+         */
+        public List<String> getRolledBack() {
+            return select(ROLLED_BACK);
+        }
+        /**
+         * @return 结果未知的参与者(提交/回滚失败或未记录)
+         */
+        public List<String> getUnknown() {
+            List<String> list = new ArrayList<String>();
+            for (int i = 0; i < outcomes.length; i++) {
+                if (outcomes[i] != COMMITTED && outcomes[i] != ROLLED_BACK) {
+                    list.add(participants.get(i));
+                }
+            }
+            return list;
+        }
+        /**
+         * 按结果筛选参与者.
+         * @param outcome 结果
+         * @return 参与者
+         */
+        private List<String> select(int outcome) {
+            List<String> list = new ArrayList<String>();
+            for (int i = 0; i < outcomes.length; i++) {
+                if (outcomes[i] == outcome) {
+                    list.add(participants.get(i));
+                }
+            }
+            return list;
+        }
+        @Override
+        public String toString() {
+            return "IncompleteChain[id=" + chainId + ", state=" + state + ", committed=" + getCommitted() + ", rolledBack=" + getRolledBack() + ", unknown=" + getUnknown() + "]";
+        }
+    }
+    /**
+     * 补偿器.
+     * @author zhengmo
+     */
+    public interface Compensator {
+        /**
+         * 补偿未正常结束的链,如撤销已提交分片上的修改或重做未提交分片.
+         * @param chain 链
+         * @return 是否已解决,解决后不再报告
+         * @throws Exception 异常,视为未解决
+         */
+        boolean compensate(IncompleteChain chain) throws Exception;
+    }
+    /**
+     * 分段文件.
+     * @author zhengmo
+     */
+    private static final class Segment {
+        /**
+         * 序号.
+         */
+        private final long seq;
+        /**
+         * 文件.
+         */
+        private final File file;
+        /**
+         * 映射.
+         */
+        private final MappedByteBuffer buffer;
+        /**
+         * 已分配位置.
+         */
+        private final AtomicInteger position = new AtomicInteger();
+        /**
+         * 在此分段开始且尚未一致结束的链数量.
+         */
+        private final AtomicInteger unresolved = new AtomicInteger();
+        /**
+         * 链计数.
+         */
+        private final AtomicLong chainCounter = new AtomicLong();
+        /**
+         * 是否有未刷盘的写入.
+         */
+        private volatile boolean dirty;
+        /**
+         * 构造函数.
+         * @param seq 序号
+         * @param file 文件
+         * @param capacity 大小
+         * @throws IOException 异常
+         */
+        Segment(long seq, File file, int capacity) throws IOException {
+            this.seq = seq;
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+    /**
+     * @日志
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommitJournal.class);
+    /**
+     * @名称编码
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /**
+     * @记录魔数
+     */
+    private static final int MAGIC = 0x434A524E;
+    /**
+     * @记录头长度: 魔数,类型,负载长度,校验和
+     */
+    private static final int HEADER = 12;
+    /**
+     * @分段文件名前缀
+     */
+    private static final String PREFIX = "commit-journal-";
+    /**
+     * @分段文件名后缀
+     */
+    private static final String SUFFIX = ".log";
+    /**
+     * @链id中分段序号的位移
+     */
+    private static final int SEQ_SHIFT = 40;
+    /**
+     * @记录负载长度上限(记录头中为无符号short)
+     */
+    private static final int MAX_LENGTH = 0xFFFF;
+    /**
+     * @记录类型: 提交开始
+     */
+    private static final short BEGIN = 1;
+    /**
+     * @记录类型: 参与者结果
+     */
+    private static final short OUTCOME = 2;
+    /**
+     * @记录类型: 链结束
+     */
+    private static final short COMPLETE = 3;
+    /**
+     * @记录类型: 已解决
+     */
+    private static final short RESOLVED = 4;
+    /**
+     * @参与者结果: 已提交
+     */
+    static final int COMMITTED = 1;
+    /**
+     * @参与者结果: 提交失败
+     */
+    static final int COMMIT_FAILED = 2;
+    /**
+     * @参与者结果: 已回滚
+     */
+    static final int ROLLED_BACK = 3;
+    /**
+     * @参与者结果: 回滚失败
+     */
+    static final int ROLLBACK_FAILED = 4;
+    /**
+     * @目录
+     */
+    private final File directory;
+    /**
+     * @分段大小
+     */
+    private final int segmentBytes;
+    /**
+     * @未删除的分段,按序号排列
+     */
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+    /**
+     * @打开前已存在的最大分段序号
+     */
+    private final long recoveredSeq;
+    /**
+     * @当前分段
+     */
+    private volatile Segment current;
+    /**
+     * @是否已停止写入(关闭或IO失败)
+     */
+    private volatile boolean stopped;
+    /**
+     * @刷盘线程
+     */
+    private final ScheduledExecutorService flusher;
+    /**
+     * 打开日志,在目录中新建分段;已有的分段留给{@link #recover(Compensator)}.
+     * @param directory 目录
+     * @param segmentBytes 分段大小
+     * @param syncInterval 刷盘周期
+     * @param unit 时间单位
+     * @throws IOException 异常
+     */
+    public CommitJournal(File directory, int segmentBytes, long syncInterval, TimeUnit unit) throws IOException {
+        if (segmentBytes < 4096 || syncInterval <= 0) {
+            throw new IllegalArgumentException("segmentBytes 不能小于4096, syncInterval 必须大于0");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("无法创建目录:" + directory);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        List<File> existing = listSegments(directory);
+        this.recoveredSeq = existing.isEmpty() ? 0L : seqOf(existing.get(existing.size() - 1));
+        this.current = openSegment(recoveredSeq + 1);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "chained-tx-journal-sync");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sync();
+            }
+        }, syncInterval, syncInterval, unit);
+    }
+    /**
+     * 读取目录中的全部分段,返回未正常结束且未解决的链.
+     * @param directory 目录
+     * @return 链,按开始顺序
+     * @throws IOException 异常
+     */
+    public static List<IncompleteChain> scan(File directory) throws IOException {
+        return scan(listSegments(directory));
+    }
+    /**
+     * 恢复打开前已存在的分段: 找出未正常结束且未解决的链,依次交给补偿器,补偿成功的记为已解决.
+     * 全部解决后删除这些分段.
+     * @param compensator 补偿器,为null时只报告
+     * @return 仍未解决的链
+     * @throws IOException 异常
+     */
+    public List<IncompleteChain> recover(Compensator compensator) throws IOException {
+        List<File> files = new ArrayList<File>();
+        for (File file : listSegments(directory)) {
+            if (seqOf(file) <= recoveredSeq) {
+                files.add(file);
+            }
+        }
+        List<IncompleteChain> unresolved = new ArrayList<IncompleteChain>();
+        List<Segment> markerSegments = new ArrayList<Segment>();
+        for (IncompleteChain chain : scan(files)) {
+            boolean resolved = false;
+            if (compensator != null) {
+                try {
+                    resolved = compensator.compensate(chain);
+                } catch (Exception e) {
+                    LOGGER.warn("Compensation failed " + chain, e);
+                }
+            }
+            if (resolved) {
+                Segment segment = appendResolved(chain.chainId);
+                if (segment != null) {
+                    markerSegments.add(segment);
+                }
+            } else {
+                LOGGER.warn("Unresolved chained transaction " + chain);
+                unresolved.add(chain);
+            }
+        }
+        if (unresolved.isEmpty()) {
+            sync();
+            for (File file : files) {
+                if (!file.delete()) {
+                    LOGGER.warn("Cannot delete journal segment " + file);
+                }
+            }
+            // 旧分段已删除,已解决记录不再需要
+            for (Segment segment : markerSegments) {
+                segment.unresolved.decrementAndGet();
+            }
+        }
+        return unresolved;
+    }
+    /**
+     * 关闭,刷盘后停止写入.
+     */
+    @Override
+    public void close() {
+        stopped = true;
+        flusher.shutdown();
+        sync();
+    }
+    /**
+     * 记录提交开始.
+     * @param names 按槽位排列的参与者名称(UTF-8)
+     * @param status 事务状态
+     * @return 链id,未记录返回0
+     */
+    long begin(byte[][] names, MultiTransactionStatus status) {
+        int count = status.getEnlistedCount();
+        int length = 18;
+        for (int i = 0; i < count; i++) {
+            length += 2 + names[status.getEnlistedSlot(i)].length;
+        }
+        if (!fits(length)) {
+            // 放不进任何分段,切换分段也无济于事
+            LOGGER.warn("Commit journal record of " + length + " bytes exceeds the segment size, chain not journaled");
+            return 0L;
+        }
+        while (!stopped) {
+            Segment segment = current;
+            int pos = reserve(segment, length);
+            if (pos < 0) {
+                roll(segment);
+                continue;
+            }
+            long chainId = (segment.seq << SEQ_SHIFT) | segment.chainCounter.incrementAndGet();
+            segment.unresolved.incrementAndGet();
+            MappedByteBuffer buffer = segment.buffer;
+            int p = pos + HEADER;
+            buffer.putLong(p, chainId);
+            buffer.putLong(p + 8, System.currentTimeMillis());
+            buffer.putShort(p + 16, (short) count);
+            p += 18;
+            for (int i = 0; i < count; i++) {
+                byte[] name = names[status.getEnlistedSlot(i)];
+                buffer.putShort(p, (short) name.length);
+                p += 2;
+                for (int j = 0; j < name.length; j++) {
+                    buffer.put(p++, name[j]);
+                }
+            }
+            seal(segment, pos, BEGIN, length);
+            return chainId;
+        }
+        return 0L;
+    }
+    /**
+     * 记录参与者结果.
+     * @param chainId 链id
+     * @param index 参与者的加入顺序
+     * @param outcome 结果
+     */
+    void outcome(long chainId, int index, int outcome) {
+        write(OUTCOME, chainId, index, outcome, false);
+    }
+    /**
+     * 记录链结束.
+     * @param chainId 链id
+     * @param state {@link HeuristicCompletionException}的STATE_*
+     */
+    void complete(long chainId, int state) {
+        write(COMPLETE, chainId, 0, state, false);
+        if (state != HeuristicCompletionException.STATE_MIXED) {
+            Segment segment = segments.get(chainId >>> SEQ_SHIFT);
+            if (segment != null) {
+                segment.unresolved.decrementAndGet();
+            }
+        }
+    }
+    /**
+     * 全部参与者都加入时的提交开始记录能否放入一个分段.
+     * @param names 按槽位排列的参与者名称(UTF-8)
+     * @return boolean
+     */
+    boolean fits(byte[][] names) {
+        int length = 18;
+        for (byte[] name : names) {
+            length += 2 + name.length;
+        }
+        return fits(length);
+    }
+    /**
+     * 负载能否放入一个分段.
+     * @param length 负载长度
+     * @return boolean
+     */
+    private boolean fits(int length) {
+        return length <= MAX_LENGTH && align(HEADER + length) <= segmentBytes;
+    }
+    /**
+     * 编码参与者名称.
+     * @param names 名称
+     * @return UTF-8编码,超长的截断
+     */
+    static byte[][] encode(String[] names) {
+        byte[][] encoded = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            byte[] bytes = String.valueOf(names[i]).getBytes(UTF8);
+            encoded[i] = bytes.length > 1024 ? Arrays.copyOf(bytes, 1024) : bytes;
+        }
+        return encoded;
+    }
+    /**
+     * 记录已解决. 写入的分段计入一个未解决数,由调用方在旧分段删除后减去.
+     * @param chainId 链id
+     * @return 写入的分段,未写入返回null
+     */
+    private Segment appendResolved(long chainId) {
+        return write(RESOLVED, chainId, 0, 0, true);
+    }
+    /**
+     * 写入定长记录: 链id,参与者顺序,值.
+     * @param type 类型
+     * @param chainId 链id
+     * @param index 参与者顺序
+     * @param value 值
+     * @param pin 是否在写入的分段上计入一个未解决数,使其不被删除
+     * @return 写入的分段,未写入返回null
+     */
+    private Segment write(short type, long chainId, int index, int value, boolean pin) {
+        while (!stopped) {
+            Segment segment = current;
+            int pos = reserve(segment, 14);
+            if (pos < 0) {
+                roll(segment);
+                continue;
+            }
+            if (pin) {
+                segment.unresolved.incrementAndGet();
+            }
+            MappedByteBuffer buffer = segment.buffer;
+            buffer.putLong(pos + HEADER, chainId);
+            buffer.putShort(pos + HEADER + 8, (short) index);
+            buffer.putInt(pos + HEADER + 10, value);
+            seal(segment, pos, type, 14);
+            return segment;
+        }
+        return null;
+    }
+    /**
+     * 在分段中分配记录空间.
+     * @param segment 分段
+     * @param length 负载长度
+     * @return 位置,分段已满返回-1
+     */
+    private int reserve(Segment segment, int length) {
+        int size = align(HEADER + length);
+        int pos = segment.position.getAndAdd(size);
+        return pos >= 0 && pos + size <= segmentBytes ? pos : -1;
+    }
+    /**
+     * 写入记录头,最后写魔数.
+     * @param segment 分段
+     * @param pos 位置
+     * @param type 类型
+     * @param length 负载长度
+     */
+    private static void seal(Segment segment, int pos, short type, int length) {
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.putShort(pos + 4, type);
+        buffer.putShort(pos + 6, (short) length);
+        buffer.putInt(pos + 8, checksum(buffer, pos, length));
+        buffer.putInt(pos, MAGIC);
+        segment.dirty = true;
+    }
+    /**
+     * 切换到新分段,并删除全部链已一致结束的最早分段.
+     * @param full 已满的分段
+     */
+    private synchronized void roll(Segment full) {
+        if (current != full || stopped) {
+            return;
+        }
+        try {
+            current = openSegment(full.seq + 1);
+        } catch (IOException e) {
+            LOGGER.error("Cannot open journal segment, journal disabled", e);
+            stopped = true;
+            return;
+        }
+        for (Segment segment : segments.values()) {
+            if (segment == current || segment == full || segment.unresolved.get() > 0) {
+                break;
+            }
+            segments.remove(segment.seq);
+            if (!segment.file.delete()) {
+                LOGGER.warn("Cannot delete journal segment " + segment.file);
+            }
+        }
+    }
+    /**
+     * 刷盘.
+     */
+    private void sync() {
+        for (Segment segment : segments.values()) {
+            if (segment.dirty) {
+                segment.dirty = false;
+                try {
+                    segment.buffer.force();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Journal sync failed " + segment.file, e);
+                }
+            }
+        }
+    }
+    /**
+     * 新建分段.
+     * @param seq 序号
+     * @return 分段
+     * @throws IOException 异常
+     */
+    private Segment openSegment(long seq) throws IOException {
+        Segment segment = new Segment(seq, new File(directory, String.format("%s%016d%s", PREFIX, seq, SUFFIX)), segmentBytes);
+        segments.put(seq, segment);
+        return segment;
+    }
+    /**
+     * 读取分段,返回未正常结束且未解决的链.
+     * @param files 分段,按序号排列
+     * @return 链
+     * @throws IOException 异常
+     */
+    private static List<IncompleteChain> scan(List<File> files) throws IOException {
+        Map<Long, IncompleteChain> chains = new LinkedHashMap<Long, IncompleteChain>();
+        List<Long> resolved = new ArrayList<Long>();
+        for (File file : files) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            MappedByteBuffer buffer;
+            try {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+            int limit = buffer.capacity();
+            int pos = 0;
+            while (pos + HEADER <= limit) {
+                int length = buffer.getShort(pos + 6) & 0xFFFF;
+                if (buffer.getInt(pos) != MAGIC || pos + HEADER + length > limit || buffer.getInt(pos + 8) != checksum(buffer, pos, length)) {
+                    pos += 8;
+                    continue;
+                }
+                read(buffer, pos, buffer.getShort(pos + 4), chains, resolved);
+                pos += align(HEADER + length);
+            }
+        }
+        for (Long chainId : resolved) {
+            chains.remove(chainId);
+        }
+        List<IncompleteChain> incomplete = new ArrayList<IncompleteChain>();
+        for (IncompleteChain chain : chains.values()) {
+            if (chain.state != HeuristicCompletionException.STATE_COMMITTED && chain.state != HeuristicCompletionException.STATE_ROLLED_BACK) {
+                incomplete.add(chain);
+            }
+        }
+        return incomplete;
+    }
+    /**
+     * 读取一条记录.
+     * @param buffer 分段
+     * @param pos 位置
+     * @param type 类型
+     * @param chains 链
+     * @param resolved 已解决的链id
+     */
+    private static void read(MappedByteBuffer buffer, int pos, short type, Map<Long, IncompleteChain> chains, List<Long> resolved) {
+        int p = pos + HEADER;
+        long chainId = buffer.getLong(p);
+        if (type == BEGIN) {
+            long beginMillis = buffer.getLong(p + 8);
+            int count = buffer.getShort(p + 16) & 0xFFFF;
+            p += 18;
+            List<String> names = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[buffer.getShort(p) & 0xFFFF];
+                p += 2;
+                for (int j = 0; j < name.length; j++) {
+                    name[j] = buffer.get(p++);
+                }
+                names.add(new String(name, UTF8));
+            }
+            chains.put(chainId, new IncompleteChain(chainId, beginMillis, Collections.unmodifiableList(names)));
+            return;
+        }
+        if (type == RESOLVED) {
+            resolved.add(chainId);
+            return;
+        }
+        IncompleteChain chain = chains.get(chainId);
+        if (chain == null) {
+            // 开始记录所在的分段已删除
+            return;
+        }
+        if (type == OUTCOME) {
+            int index = buffer.getShort(p + 8) & 0xFFFF;
+            if (index < chain.outcomes.length) {
+                chain.outcomes[index] = buffer.getInt(p + 10);
+            }
+        } else if (type == COMPLETE) {
+            chain.state = buffer.getInt(p + 10);
+        }
+    }
+    /**
+     * 记录的校验和(FNV-1a),覆盖类型,长度与负载.
+     * @param buffer 分段
+     * @param pos 位置
+     * @param length 负载长度
+     * @return 校验和
+     */
+    private static int checksum(MappedByteBuffer buffer, int pos, int length) {
+        int hash = 0x811C9DC5;
+        for (int i = pos + 4; i < pos + 8; i++) {
+            hash = (hash ^ (buffer.get(i) & 0xFF)) * 0x01000193;
+        }
+        for (int i = pos + HEADER; i < pos + HEADER + length; i++) {
+            hash = (hash ^ (buffer.get(i) & 0xFF)) * 0x01000193;
+        }
+        return hash;
+    }
+    /**
+     * 按8字节对齐.
+     * @param size 大小
+     * @return 对齐后的大小
+     */
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+    /**
+     * 列出目录中的分段,按序号排列.
+     * @param directory 目录
+     * @return 分段
+     */
+    private static List<File> listSegments(File directory) {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().startsWith(PREFIX) && file.getName().endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long x = seqOf(a);
+                long y = seqOf(b);
+                return x < y ? -1 : x == y ? 0 : 1;
+            }
+        });
+        return Arrays.asList(files);
+    }
+    /**
+     * 分段文件的序号.
+     * @param file 文件
+     * @return 序号
+     */
+    private static long seqOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+}
@@ -15,18 +15,29 @@
  */
 package com.zhengmo.data.transaction;
 
+import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import org.springframework.jdbc.datasource.JdbcTransactionObjectSupport;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionException;
 import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.TransactionTimedOutException;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+import org.springframework.transaction.support.DefaultTransactionStatus;
 import org.springframework.util.Assert;
 
 /**
  * {@link TransactionStatus} implementation to orchestrate {@link TransactionStatus} instances for multiple {@link PlatformTransactionManager} instances.
+ * <p />
+ * Every {@link PlatformTransactionManager} of the chain owns a fixed slot (its index in the chain), statuses and savepoints are kept in plain arrays indexed by that slot. Instances are confined to
+ * the thread running the transaction and therefore not synchronized.
  * 
  * @author Michael Hunger
  * @author Oliver Gierke
@@ -37,92 +48,150 @@ class MultiTransactionStatus implements TransactionStatus {
      * 内部类.
      * @author zhengmo
      */
-    private static class SavePoints {
+    private class SavePoints {
         /**
-         * 事务回滚点.
+         * 事务回滚点,按槽位存放.
          */
-        private final Map<TransactionStatus, Object> savepoints = new HashMap<TransactionStatus, Object>();
+        private final Object[] savepoints = new Object[transactionStatuses.length];
         /**
          * 释放事务点.
          */
         public void release() {
-            for (TransactionStatus transactionStatus : savepoints.keySet()) {
-                transactionStatus.releaseSavepoint(savepointFor(transactionStatus));
+            for (int slot = 0; slot < savepoints.length; slot++) {
+                if (savepoints[slot] != null) {
+                    transactionStatuses[slot].releaseSavepoint(savepoints[slot]);
+                }
             }
         }
         /**
          * 回滚事务.
          */
         public void rollback() {
-            for (TransactionStatus transactionStatus : savepoints.keySet()) {
-                transactionStatus.rollbackToSavepoint(savepointFor(transactionStatus));
+            for (int slot = 0; slot < savepoints.length; slot++) {
+                if (savepoints[slot] != null) {
+                    transactionStatuses[slot].rollbackToSavepoint(savepoints[slot]);
+                }
             }
         }
-        /**
-         * 添加事务点.
-         * @param status 事务状态
-         * @param savepoint savepoint
-         */
-        private void addSavePoint(TransactionStatus status, Object savepoint) {
-            Assert.notNull(status, "TransactionStatus must not be null!");
-            this.savepoints.put(status, savepoint);
-        }
         /**
          * 保存.
-         * @param transactionStatus 事务状态
-         */
-        private void save(TransactionStatus transactionStatus) {
-            Object savepoint = transactionStatus.createSavepoint();
-            addSavePoint(transactionStatus, savepoint);
-        }
-        /**
-         * 获取事务点.
-         * @param transactionStatus 事务状态
-         * @return 事务
+         * @param slot 槽位
          */
-        private Object savepointFor(TransactionStatus transactionStatus) {
-            return savepoints.get(transactionStatus);
+        private void save(int slot) {
+            savepoints[slot] = transactionStatuses[slot].createSavepoint();
         }
     }
     /**
-     * 事务管理器.
+     * 事务申明.
+     */
+    private final TransactionDefinition definition;
+    /**
+     * 链上的事务管理器,下标即槽位.
+     */
+    private final PlatformTransactionManager[] transactionManagers;
+    /**
+     * 各槽位的事务状态,未加入为null.
      */
-    private final PlatformTransactionManager mainTransactionManager;
+    private final TransactionStatus[] transactionStatuses;
     /**
-     * 事务管理器与事务状态.
+     * 按加入顺序排列的槽位.
      */
-    private final Map<PlatformTransactionManager, TransactionStatus> transactionStatuses = Collections.synchronizedMap(new HashMap<PlatformTransactionManager, TransactionStatus>());
+    private final int[] enlistedSlots;
+    /**
+     * 已加入数量.
+     */
+    private int enlistedCount;
     /**
      * 是否同步.
      */
     private boolean newSynchonization;
     /**
-     * Creates a new {@link MultiTransactionStatus} for the given {@link PlatformTransactionManager}.
+     * 尚无事务加入时设置的回滚标记.
+     */
+    private boolean rollbackOnly;
+    /**
+     * 监听器,可为null.
+     */
+    private final ChainedTransactionListener listener;
+    /**
+     * 开始时间,仅在有监听器时记录.
+     */
+    private final long startNanos;
+    /**
+     * 链式事务的截止时间({@link System#nanoTime()}),申明没有超时时不使用.
+     */
+    private final long deadlineNanos;
+    /**
+     * 刷新回调,未注册时为null.
+     */
+    private List<Runnable> flushCallbacks;
+    /**
+     * 未释放的回滚点,按创建顺序排列,没有时为null. 之后加入的事务在这些回滚点上补建回滚点.
+     */
+    private List<SavePoints> openSavePoints;
+    /**
+     * Creates a new {@link MultiTransactionStatus} for the given {@link TransactionDefinition} and chain of {@link PlatformTransactionManager}s. The first registered
+     * {@link PlatformTransactionManager} becomes the main one.
      * 
-     * @param mainTransactionManager must not be {@literal null}.
+     * @param definition must not be {@literal null}.
+     * @param transactionManagers the chain, must not be {@literal null}; the array is shared, not copied.
+     * @param listener may be {@literal null}.
      */
-    public MultiTransactionStatus(PlatformTransactionManager mainTransactionManager) {
-        Assert.notNull(mainTransactionManager, "TransactionManager must not be null!");
-        this.mainTransactionManager = mainTransactionManager;
+    public MultiTransactionStatus(TransactionDefinition definition, PlatformTransactionManager[] transactionManagers, ChainedTransactionListener listener) {
+        Assert.notNull(definition, "TransactionDefinition must not be null!");
+        Assert.notNull(transactionManagers, "Transaction managers must not be null!");
+        this.definition = definition;
+        this.transactionManagers = transactionManagers;
+        this.transactionStatuses = new TransactionStatus[transactionManagers.length];
+        this.enlistedSlots = new int[transactionManagers.length];
+        this.listener = listener;
+        this.startNanos = listener == null ? 0L : System.nanoTime();
+        this.deadlineNanos = definition.getTimeout() > 0 ? System.nanoTime() + TimeUnit.SECONDS.toNanos(definition.getTimeout()) : 0L;
     }
     /**
      * 单个事务提交.
-     * @param transactionManager 事务管理器
+     * @param slot 槽位
      */
-    public void commit(PlatformTransactionManager transactionManager) {
-        TransactionStatus transactionStatus = getTransactionStatus(transactionManager);
-        transactionManager.commit(transactionStatus);
+    public void commit(int slot) {
+        if (listener == null) {
+            transactionManagers[slot].commit(transactionStatuses[slot]);
+            return;
+        }
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            transactionManagers[slot].commit(transactionStatuses[slot]);
+            success = true;
+        } finally {
+            listener.afterCommit(slot, System.nanoTime() - start, success);
+        }
     }
-    /*
-     * (non-Javadoc)
+    /**
+     * 链式事务结束,通知监听器.
+     * @param state 结束状态
+     * @param rollbacksAfterCommitFailure 提交失败后回滚的数量
+     */
+    public void complete(int state, int rollbacksAfterCommitFailure) {
+        if (listener != null) {
+            listener.afterCompletion(System.nanoTime() - startNanos, state, rollbacksAfterCommitFailure);
+        }
+    }
+    /**
+     * 在已加入的事务上创建回滚点. 延迟加入时,回滚点释放前加入的事务会在加入时补建回滚点,回滚到该回滚点时一并回滚其工作.
+     * @return 回滚点
+     * @throws TransactionException 异常
      * @see org.springframework.transaction.SavepointManager#createSavepoint()
      */
     @Override
     public Object createSavepoint() throws TransactionException {
         SavePoints savePoints = new SavePoints();
-        for (TransactionStatus transactionStatus : transactionStatuses.values()) {
-            savePoints.save(transactionStatus);
+        for (int i = 0; i < enlistedCount; i++) {
+            savePoints.save(enlistedSlots[i]);
         }
+        if (openSavePoints == null) {
+            openSavePoints = new ArrayList<SavePoints>(2);
+        }
+        openSavePoints.add(savePoints);
         return savePoints;
     }
     /*
@@ -131,16 +200,79 @@ class MultiTransactionStatus implements TransactionStatus {
      */
     @Override
     public void flush() {
-        for (TransactionStatus transactionStatus : transactionStatuses.values()) {
-            transactionStatus.flush();
+        runFlushCallbacks();
+        for (int i = 0; i < enlistedCount; i++) {
+            transactionStatuses[enlistedSlots[i]].flush();
+        }
+    }
+    /**
+     * 注册刷新回调,在{@link #flush()}和提交前执行.
+     * @param callback 回调
+     */
+    public void registerFlushCallback(Runnable callback) {
+        if (flushCallbacks == null) {
+            flushCallbacks = new ArrayList<Runnable>(2);
         }
+        flushCallbacks.add(callback);
     }
     /**
-     * 获取事务管理器与状态.
+     * 执行刷新回调.
+     */
+    public void runFlushCallbacks() {
+        if (flushCallbacks != null) {
+            for (Runnable callback : flushCallbacks) {
+                callback.run();
+            }
+        }
+    }
+    /**
+     * 获取事务管理器与状态,按加入顺序排列. 每次调用生成只读快照,仅为兼容保留.
      * @return 集合
      */
     public Map<PlatformTransactionManager, TransactionStatus> getTransactionStatuses() {
-        return transactionStatuses;
+        Map<PlatformTransactionManager, TransactionStatus> map = new LinkedHashMap<PlatformTransactionManager, TransactionStatus>();
+        for (int i = 0; i < enlistedCount; i++) {
+            map.put(transactionManagers[enlistedSlots[i]], transactionStatuses[enlistedSlots[i]]);
+        }
+        return Collections.unmodifiableMap(map);
+    }
+    /**
+     * 获取槽位上由本事务开启的JDBC连接.
+     * @param slot 槽位
+     * @return 连接,非JDBC事务或非新事务时返回null
+     */
+    public Connection getJdbcConnection(int slot) {
+        TransactionStatus transactionStatus = transactionStatuses[slot];
+        if (!(transactionStatus instanceof DefaultTransactionStatus) || !transactionStatus.isNewTransaction()) {
+            return null;
+        }
+        Object transaction = ((DefaultTransactionStatus) transactionStatus).getTransaction();
+        if (!(transaction instanceof JdbcTransactionObjectSupport) || !((JdbcTransactionObjectSupport) transaction).hasConnectionHolder()) {
+            return null;
+        }
+        return ((JdbcTransactionObjectSupport) transaction).getConnectionHolder().getConnection();
+    }
+    /**
+     * 获取事务申明.
+     * @return 事务申明
+     */
+    public TransactionDefinition getDefinition() {
+        return definition;
+    }
+    /**
+     * 已加入的事务数量.
+     * @return 数量
+     */
+    public int getEnlistedCount() {
+        return enlistedCount;
+    }
+    /**
+     * 第index个加入的事务的槽位.
+     * @param index 加入顺序
+     * @return 槽位
+     */
+    public int getEnlistedSlot(int index) {
+        return enlistedSlots[index];
     }
     /*
      * (non-Javadoc)
@@ -148,7 +280,8 @@ class MultiTransactionStatus implements TransactionStatus {
      */
     @Override
     public boolean hasSavepoint() {
-        return getMainTransactionStatus().hasSavepoint();
+        TransactionStatus mainTransactionStatus = getMainTransactionStatus();
+        return mainTransactionStatus != null && mainTransactionStatus.hasSavepoint();
     }
     /*
      * (non-Javadoc)
@@ -156,7 +289,8 @@ class MultiTransactionStatus implements TransactionStatus {
      */
     @Override
     public boolean isCompleted() {
-        return getMainTransactionStatus().isCompleted();
+        TransactionStatus mainTransactionStatus = getMainTransactionStatus();
+        return mainTransactionStatus != null && mainTransactionStatus.isCompleted();
     }
     /**
      * get.
@@ -171,7 +305,8 @@ class MultiTransactionStatus implements TransactionStatus {
      */
     @Override
     public boolean isNewTransaction() {
-        return getMainTransactionStatus().isNewTransaction();
+        TransactionStatus mainTransactionStatus = getMainTransactionStatus();
+        return mainTransactionStatus == null || mainTransactionStatus.isNewTransaction();
     }
     /*
      * (non-Javadoc)
@@ -179,15 +314,62 @@ class MultiTransactionStatus implements TransactionStatus {
      */
     @Override
     public boolean isRollbackOnly() {
-        return getMainTransactionStatus().isRollbackOnly();
+        TransactionStatus mainTransactionStatus = getMainTransactionStatus();
+        return mainTransactionStatus == null ? rollbackOnly : mainTransactionStatus.isRollbackOnly();
     }
     /**
-     * 注册事务.
+     * 是否已加入事务.
+     * @param slot 槽位
+     * @return boolean
+     */
+    public boolean isRegistered(int slot) {
+        return transactionStatuses[slot] != null;
+    }
+    /**
+     * 注册事务. 申明有超时时,参与者的超时为链式事务截止前的剩余时间,已超过截止时间时不再开启.
      * @param definition 申明
-     * @param transactionManager 事务管理器
+     * @param slot 槽位
      */
-    public void registerTransactionManager(TransactionDefinition definition, PlatformTransactionManager transactionManager) {
-        getTransactionStatuses().put(transactionManager, transactionManager.getTransaction(definition));
+    public void registerTransactionManager(TransactionDefinition definition, int slot) {
+        TransactionDefinition participantDefinition = definition.getTimeout() > 0 ? inheritDeadline(definition, slot) : definition;
+        TransactionStatus transactionStatus;
+        if (listener == null) {
+            transactionStatus = transactionManagers[slot].getTransaction(participantDefinition);
+        } else {
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                transactionStatus = transactionManagers[slot].getTransaction(participantDefinition);
+                success = true;
+            } finally {
+                listener.afterBegin(slot, System.nanoTime() - start, success);
+            }
+        }
+        if (rollbackOnly) {
+            transactionStatus.setRollbackOnly();
+        }
+        transactionStatuses[slot] = transactionStatus;
+        enlistedSlots[enlistedCount++] = slot;
+        if (openSavePoints != null) {
+            for (SavePoints savePoints : openSavePoints) {
+                savePoints.save(slot);
+            }
+        }
+    }
+    /**
+     * 生成超时为剩余时间的参与者申明.
+     * @param definition 申明
+     * @param slot 槽位
+     * @return 参与者申明
+     */
+    private TransactionDefinition inheritDeadline(TransactionDefinition definition, int slot) {
+        long remaining = deadlineNanos - System.nanoTime();
+        if (remaining <= 0) {
+            throw new TransactionTimedOutException("Chained transaction deadline exceeded before enlisting (" + transactionManagers[slot] + ")");
+        }
+        DefaultTransactionDefinition participantDefinition = new DefaultTransactionDefinition(definition);
+        participantDefinition.setTimeout((int) Math.min(Integer.MAX_VALUE, (remaining + 999999999L) / 1000000000L));
+        return participantDefinition;
     }
     /*
      * (non-Javadoc)
@@ -196,14 +378,26 @@ class MultiTransactionStatus implements TransactionStatus {
     @Override
     public void releaseSavepoint(Object savepoint) throws TransactionException {
         ((SavePoints) savepoint).release();
+        openSavePoints.remove(savepoint);
     }
     /**
-     * Rolls back the {@link TransactionStatus} registered for the given {@link PlatformTransactionManager}.
+     * Rolls back the {@link TransactionStatus} registered for the given slot.
      * 
-     * @param transactionManager must not be {@literal null}.
+     * @param slot slot of a registered {@link PlatformTransactionManager}.
      */
-    public void rollback(PlatformTransactionManager transactionManager) {
-        transactionManager.rollback(getTransactionStatus(transactionManager));
+    public void rollback(int slot) {
+        if (listener == null) {
+            transactionManagers[slot].rollback(transactionStatuses[slot]);
+            return;
+        }
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            transactionManagers[slot].rollback(transactionStatuses[slot]);
+            success = true;
+        } finally {
+            listener.afterRollback(slot, System.nanoTime() - start, success);
+        }
     }
     /*
      * (non-Javadoc)
@@ -213,6 +407,11 @@ class MultiTransactionStatus implements TransactionStatus {
     public void rollbackToSavepoint(Object savepoint) throws TransactionException {
         SavePoints savePoints = (SavePoints) savepoint;
         savePoints.rollback();
+        // 回滚后之后创建的回滚点已失效
+        int index = openSavePoints.indexOf(savePoints);
+        if (index >= 0) {
+            openSavePoints.subList(index + 1, openSavePoints.size()).clear();
+        }
     }
     /**
      * set.
@@ -226,8 +425,9 @@ class MultiTransactionStatus implements TransactionStatus {
      */
     @Override
     public void setRollbackOnly() {
-        for (TransactionStatus ts : transactionStatuses.values()) {
-            ts.setRollbackOnly();
+        this.rollbackOnly = true;
+        for (int i = 0; i < enlistedCount; i++) {
+            transactionStatuses[enlistedSlots[i]].setRollbackOnly();
         }
     }
     /**
@@ -235,14 +435,6 @@ class MultiTransactionStatus implements TransactionStatus {
      * @return 事务状态
      */
     private TransactionStatus getMainTransactionStatus() {
-        return transactionStatuses.get(mainTransactionManager);
-    }
-    /**
-     * 获取指定事务管理器事务状态.
-     * @param transactionManager 事务管理器
-     * @return 事务状态
-     */
-    private TransactionStatus getTransactionStatus(PlatformTransactionManager transactionManager) {
-        return this.getTransactionStatuses().get(transactionManager);
+        return enlistedCount == 0 ? null : transactionStatuses[enlistedSlots[0]];
     }
 }
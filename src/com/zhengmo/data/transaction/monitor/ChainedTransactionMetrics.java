@@ -0,0 +1,270 @@
+/*
+ * 文件名：ChainedTransactionMetrics.java
+ * 描述： ChainedTransactionMetrics.java
+ * 修改人：zhengmo
+ * 修改时间：2015年10月28日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.monitor;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.HeuristicCompletionException;
+
+import com.zhengmo.data.transaction.ChainedTransactionListener;
+
+/**
+ * 链式事务统计.
+ *
+ * <pre>
+ * ##############使用方法
+ * 1.ChainedTransactionMetrics metrics = new ChainedTransactionMetrics();
+ * 2.metrics.registerMBean("com.zhengmo.data.transaction:type=ChainedTransactionMetrics");
+ * 3.util.setMetrics(metrics);
+ * ##############使用方法
+ * 每个数据源key对应一个{@link ParticipantMetrics},注册JMX后以 participant=key 挂在同一名称下.
+ * 统计只做原子自增,可在生产环境常开.
+ * </pre>
+ * @author zhengmo
+ */
+public class ChainedTransactionMetrics implements ChainedTransactionMetricsMBean {
+    /**
+     * 日志.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChainedTransactionMetrics.class);
+    /**
+     * 绑定了参与者统计数组的监听器.
+     * @author zhengmo
+     */
+    private class Listener implements ChainedTransactionListener {
+        /**
+         * @按槽位排列的参与者统计
+         */
+        private final ParticipantMetrics[] participants;
+        /**
+         * 构造函数.
+         * @param participants 参与者统计
+         */
+        Listener(ParticipantMetrics[] participants) {
+            this.participants = participants;
+        }
+        @Override
+        public void afterBegin(int slot, long nanos, boolean success) {
+            participants[slot].recordBegin(nanos, success);
+        }
+        @Override
+        public void afterCommit(int slot, long nanos, boolean success) {
+            participants[slot].recordCommit(nanos, success);
+        }
+        @Override
+        public void afterRollback(int slot, long nanos, boolean success) {
+            participants[slot].recordRollback(nanos, success);
+        }
+        @Override
+        public void afterCompletion(long nanos, int state, int rollbacksAfterCommitFailure) {
+            recordCompletion(nanos, state, rollbacksAfterCommitFailure);
+        }
+    }
+    /**
+     * @链式事务耗时
+     */
+    private final LatencyHistogram chain = new LatencyHistogram();
+    /**
+     * @全部提交次数
+     */
+    private final AtomicLong committed = new AtomicLong();
+    /**
+     * @全部回滚次数
+     */
+    private final AtomicLong rolledBack = new AtomicLong();
+    /**
+     * @部分提交次数
+     */
+    private final AtomicLong mixed = new AtomicLong();
+    /**
+     * @提交失败后回滚数
+     */
+    private final AtomicLong rollbacksAfterCommitFailure = new AtomicLong();
+    /**
+     * @参与者统计
+     */
+    private final ConcurrentMap<String, ParticipantMetrics> participants = new ConcurrentHashMap<String, ParticipantMetrics>();
+    /**
+     * @JMX名称,未注册为null
+     */
+    private volatile ObjectName objectName;
+    /**
+     * 生成按槽位绑定参与者统计的监听器.
+     * @param keys 按槽位排列的数据源key
+     * @return 监听器
+     */
+    public ChainedTransactionListener listener(String[] keys) {
+        ParticipantMetrics[] bound = new ParticipantMetrics[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            bound[i] = getParticipant(keys[i]);
+        }
+        return new Listener(bound);
+    }
+    /**
+     * 获取参与者统计,不存在则创建.
+     * @param key 数据源key
+     * @return 参与者统计
+     */
+    public ParticipantMetrics getParticipant(String key) {
+        ParticipantMetrics metrics = participants.get(key);
+        if (metrics == null) {
+            ParticipantMetrics created = new ParticipantMetrics(key);
+            metrics = participants.putIfAbsent(key, created);
+            if (metrics == null) {
+                metrics = created;
+                ObjectName name = objectName;
+                if (name != null) {
+                    registerParticipant(ManagementFactory.getPlatformMBeanServer(), name, created);
+                }
+            }
+        }
+        return metrics;
+    }
+    /**
+     * 获取链式事务耗时直方图.
+     * @return 直方图
+     */
+    public LatencyHistogram getChainHistogram() {
+        return chain;
+    }
+    /**
+     * 注册到平台MBeanServer.
+     * @param name JMX名称,如 com.zhengmo.data.transaction:type=ChainedTransactionMetrics
+     * @throws JMException 异常
+     */
+    public synchronized void registerMBean(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName on = new ObjectName(name);
+        server.registerMBean(this, on);
+        objectName = on;
+        for (ParticipantMetrics metrics : participants.values()) {
+            registerParticipant(server, on, metrics);
+        }
+    }
+    /**
+     * 从平台MBeanServer注销.
+     * @throws JMException 异常
+     */
+    public synchronized void unregisterMBean() throws JMException {
+        ObjectName on = objectName;
+        if (on == null) {
+            return;
+        }
+        objectName = null;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ParticipantMetrics metrics : participants.values()) {
+            ObjectName participantName = participantName(on, metrics.getKey());
+            if (server.isRegistered(participantName)) {
+                server.unregisterMBean(participantName);
+            }
+        }
+        server.unregisterMBean(on);
+    }
+    @Override
+    public long getChainCount() {
+        return chain.getCount();
+    }
+    @Override
+    public long getChainMeanMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(chain.getMeanNanos());
+    }
+    @Override
+    public long getChainP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(chain.getPercentileNanos(99.0));
+    }
+    @Override
+    public long getChainMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(chain.getMaxNanos());
+    }
+    @Override
+    public long getCommittedCount() {
+        return committed.get();
+    }
+    @Override
+    public long getRolledBackCount() {
+        return rolledBack.get();
+    }
+    @Override
+    public long getMixedCount() {
+        return mixed.get();
+    }
+    @Override
+    public long getRollbacksAfterCommitFailure() {
+        return rollbacksAfterCommitFailure.get();
+    }
+    @Override
+    public String[] getParticipantKeys() {
+        return participants.keySet().toArray(new String[0]);
+    }
+    @Override
+    public void reset() {
+        chain.reset();
+        committed.set(0);
+        rolledBack.set(0);
+        mixed.set(0);
+        rollbacksAfterCommitFailure.set(0);
+        for (ParticipantMetrics metrics : participants.values()) {
+            metrics.reset();
+        }
+    }
+    /**
+     * 记录链式事务结束.
+     * @param nanos 耗时
+     * @param state 结束状态
+     * @param rollbacks 提交失败后回滚数
+     */
+    private void recordCompletion(long nanos, int state, int rollbacks) {
+        chain.record(nanos);
+        if (state == HeuristicCompletionException.STATE_COMMITTED) {
+            committed.incrementAndGet();
+        } else if (state == HeuristicCompletionException.STATE_MIXED) {
+            mixed.incrementAndGet();
+        } else {
+            rolledBack.incrementAndGet();
+        }
+        if (rollbacks > 0) {
+            rollbacksAfterCommitFailure.addAndGet(rollbacks);
+        }
+    }
+    /**
+     * 注册参与者MBean,失败只记录日志.
+     * @param server MBeanServer
+     * @param parent 父名称
+     * @param metrics 参与者统计
+     */
+    private void registerParticipant(MBeanServer server, ObjectName parent, ParticipantMetrics metrics) {
+        try {
+            ObjectName participantName = participantName(parent, metrics.getKey());
+            if (!server.isRegistered(participantName)) {
+                server.registerMBean(metrics, participantName);
+            }
+        } catch (JMException e) {
+            LOGGER.warn("Register participant mbean failed (" + metrics.getKey() + ") " + e.getMessage(), e);
+        }
+    }
+    /**
+     * 参与者JMX名称.
+     * @param parent 父名称
+     * @param key 数据源key
+     * @return 名称
+     * @throws JMException 异常
+     */
+    private static ObjectName participantName(ObjectName parent, String key) throws JMException {
+        return new ObjectName(parent.getCanonicalName() + ",participant=" + ObjectName.quote(key));
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * 文件名：ChainedTransactionMetricsMBean.java
+ * 描述： ChainedTransactionMetricsMBean.java
+ * 修改人：zhengmo
+ * 修改时间：2015年10月28日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.monitor;
+/**
+ * 链式事务整体统计的JMX接口,耗时单位为微秒.
+ * @author zhengmo
+ */
+public interface ChainedTransactionMetricsMBean {
+    /**
+     * @return 链式事务次数
+     */
+    long getChainCount();
+    /**
+     * @return 链式事务平均耗时
+     */
+    long getChainMeanMicros();
+    /**
+     * @return 链式事务99分位耗时
+     */
+    long getChainP99Micros();
+    /**
+     * @return 链式事务最大耗时
+     */
+    long getChainMaxMicros();
+    /**
+     * @return 全部提交次数
+     */
+    long getCommittedCount();
+    /**
+     * @return 全部回滚次数
+     */
+    long getRolledBackCount();
+    /**
+     * @return 部分提交部分回滚(STATE_MIXED)次数
+     */
+    long getMixedCount();
+    /**
+     * @return 提交失败后回滚的参与者总数
+     */
+    long getRollbacksAfterCommitFailure();
+    /**
+     * @return 已统计的数据源key
+     */
+    String[] getParticipantKeys();
+    /**
+     * 清零.
+     */
+    void reset();
+}
@@ -0,0 +1,118 @@
+/*
+ * 文件名：LatencyHistogram.java
+ * 描述： LatencyHistogram.java
+ * 修改人：zhengmo
+ * 修改时间：2015年10月28日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.monitor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁耗时直方图.
+ *
+ * <pre>
+ * 按2的幂分桶(第i个桶为[2^(i-1), 2^i)纳秒),记录只做原子自增,不分配对象.
+ * 百分位数返回所在桶的上界,误差不超过一倍.
+ * </pre>
+ * @author zhengmo
+ */
+public class LatencyHistogram {
+    /**
+     * @桶数量
+     */
+    private static final int BUCKETS = 65;
+    /**
+     * @各桶计数
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    /**
+     * @总次数
+     */
+    private final AtomicLong count = new AtomicLong();
+    /**
+     * @总耗时
+     */
+    private final AtomicLong totalNanos = new AtomicLong();
+    /**
+     * @最大耗时
+     */
+    private final AtomicLong maxNanos = new AtomicLong();
+    /**
+     * 记录一次耗时.
+     * @param nanos 耗时
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+    /**
+     * 获取总次数.
+     * @return 次数
+     */
+    public long getCount() {
+        return count.get();
+    }
+    /**
+     * 获取平均耗时.
+     * @return 纳秒
+     */
+    public long getMeanNanos() {
+        long c = count.get();
+        return c == 0 ? 0 : totalNanos.get() / c;
+    }
+    /**
+     * 获取最大耗时.
+     * @return 纳秒
+     */
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+    /**
+     * 获取百分位耗时.
+     * @param percentile 百分位,如99.0
+     * @return 纳秒
+     */
+    public long getPercentileNanos(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0) {
+                long upper = i == 0 ? 0 : i >= 63 ? Long.MAX_VALUE : (1L << i) - 1;
+                return Math.min(upper, maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+    /**
+     * 清零.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+}
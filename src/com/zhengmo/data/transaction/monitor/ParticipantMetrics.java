@@ -0,0 +1,172 @@
+/*
+ * 文件名：ParticipantMetrics.java
+ * 描述： ParticipantMetrics.java
+ * 修改人：zhengmo
+ * 修改时间：2015年10月28日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.monitor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单个参与者(数据源)的开启/提交/回滚统计.
+ * @author zhengmo
+ */
+public class ParticipantMetrics implements ParticipantMetricsMBean {
+    /**
+     * @数据源key
+     */
+    private final String key;
+    /**
+     * @开启事务耗时
+     */
+    private final LatencyHistogram begin = new LatencyHistogram();
+    /**
+     * @提交耗时
+     */
+    private final LatencyHistogram commit = new LatencyHistogram();
+    /**
+     * @回滚耗时
+     */
+    private final LatencyHistogram rollback = new LatencyHistogram();
+    /**
+     * @开启事务失败次数
+     */
+    private final AtomicLong beginFailures = new AtomicLong();
+    /**
+     * @提交失败次数
+     */
+    private final AtomicLong commitFailures = new AtomicLong();
+    /**
+     * @回滚失败次数
+     */
+    private final AtomicLong rollbackFailures = new AtomicLong();
+    /**
+     * 构造函数.
+     * @param key 数据源key
+     */
+    public ParticipantMetrics(String key) {
+        this.key = key;
+    }
+    /**
+     * 记录开启事务.
+     * @param nanos 耗时
+     * @param success 是否成功
+     */
+    public void recordBegin(long nanos, boolean success) {
+        begin.record(nanos);
+        if (!success) {
+            beginFailures.incrementAndGet();
+        }
+    }
+    /**
+     * 记录提交.
+     * @param nanos 耗时
+     * @param success 是否成功
+     */
+    public void recordCommit(long nanos, boolean success) {
+        commit.record(nanos);
+        if (!success) {
+            commitFailures.incrementAndGet();
+        }
+    }
+    /**
+     * 记录回滚.
+     * @param nanos 耗时
+     * @param success 是否成功
+     */
+    public void recordRollback(long nanos, boolean success) {
+        rollback.record(nanos);
+        if (!success) {
+            rollbackFailures.incrementAndGet();
+        }
+    }
+    /**
+     * 获取开启事务耗时直方图.
+     * @return 直方图
+     */
+    public LatencyHistogram getBeginHistogram() {
+        return begin;
+    }
+    /**
+     * 获取提交耗时直方图.
+     * @return 直方图
+     */
+    public LatencyHistogram getCommitHistogram() {
+        return commit;
+    }
+    /**
+     * 获取回滚耗时直方图.
+     * @return 直方图
+     */
+    public LatencyHistogram getRollbackHistogram() {
+        return rollback;
+    }
+    @Override
+    public String getKey() {
+        return key;
+    }
+    @Override
+    public long getBeginCount() {
+        return begin.getCount();
+    }
+    @Override
+    public long getBeginFailures() {
+        return beginFailures.get();
+    }
+    @Override
+    public long getBeginMeanMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(begin.getMeanNanos());
+    }
+    @Override
+    public long getBeginP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(begin.getPercentileNanos(99.0));
+    }
+    @Override
+    public long getCommitCount() {
+        return commit.getCount();
+    }
+    @Override
+    public long getCommitFailures() {
+        return commitFailures.get();
+    }
+    @Override
+    public long getCommitMeanMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(commit.getMeanNanos());
+    }
+    @Override
+    public long getCommitP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(commit.getPercentileNanos(99.0));
+    }
+    @Override
+    public long getCommitMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(commit.getMaxNanos());
+    }
+    @Override
+    public long getRollbackCount() {
+        return rollback.getCount();
+    }
+    @Override
+    public long getRollbackFailures() {
+        return rollbackFailures.get();
+    }
+    @Override
+    public long getRollbackMeanMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(rollback.getMeanNanos());
+    }
+    @Override
+    public long getRollbackP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(rollback.getPercentileNanos(99.0));
+    }
+    @Override
+    public void reset() {
+        begin.reset();
+        commit.reset();
+        rollback.reset();
+        beginFailures.set(0);
+        commitFailures.set(0);
+        rollbackFailures.set(0);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * 文件名：ParticipantMetricsMBean.java
+ * 描述： ParticipantMetricsMBean.java
+ * 修改人：zhengmo
+ * 修改时间：2015年10月28日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.monitor;
+/**
+ * 单个参与者(数据源)统计的JMX接口,耗时单位为微秒.
+ * @author zhengmo
+ */
+public interface ParticipantMetricsMBean {
+    /**
+     * @return 数据源key
+     */
+    String getKey();
+    /**
+     * @return 开启事务次数
+     */
+    long getBeginCount();
+    /**
+     * @return 开启事务失败次数
+     */
+    long getBeginFailures();
+    /**
+     * @return 开启事务平均耗时
+     */
+    long getBeginMeanMicros();
+    /**
+     * @return 开启事务99分位耗时
+     */
+    long getBeginP99Micros();
+    /**
+     * @return 提交次数
+     */
+    long getCommitCount();
+    /**
+     * @return 提交失败次数
+     */
+    long getCommitFailures();
+    /**
+     * @return 提交平均耗时
+     */
+    long getCommitMeanMicros();
+    /**
+     * @return 提交99分位耗时
+     */
+    long getCommitP99Micros();
+    /**
+     * @return 提交最大耗时
+     */
+    long getCommitMaxMicros();
+    /**
+     * @return 回滚次数
+     */
+    long getRollbackCount();
+    /**
+     * @return 回滚失败次数
+     */
+    long getRollbackFailures();
+    /**
+     * @return 回滚平均耗时
+     */
+    long getRollbackMeanMicros();
+    /**
+     * @return 回滚99分位耗时
+     */
+    long getRollbackP99Micros();
+    /**
+     * 清零.
+     */
+    void reset();
+}
@@ -0,0 +1,297 @@
+/*
+ * 文件名：ChainedTransactionBenchmark.java
+ * 描述： ChainedTransactionBenchmark.java
+ * 修改人：zhengmo
+ * 修改时间：2015年10月27日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Savepoint;
+import java.util.Date;
+
+import javax.sql.DataSource;
+
+import org.mybatis.spring.SqlSessionFactoryBean;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+import com.zhengmo.data.transaction.ChainedTransactionManager;
+import com.zhengmo.data.transaction.TransactionCallBack;
+import com.zhengmo.data.transaction.util.ChainedTransactionManagerUtil;
+import com.zhengmo.data.transaction.util.DatePartitionRouter;
+
+/**
+ * 链式事务自身开销基准测试.
+ *
+ * <pre>
+ * 使用不访问网络的桩数据源,只测量框架本身的开销(ns/op 与 bytes/op),用于升级前发现性能回退.
+ * 覆盖:
+ * 1.ChainedTransactionManager getTransaction + commit/rollback,参与者数量 1,2,8,32
+ * 2.getTransaction + createSavepoint/releaseSavepoint + commit
+ * 3.ChainedTransactionManagerUtil.doTransaction 端到端(全部加入/延迟加入)
+ * 4.genSqlSessionTemplate 缓存命中与未命中
+ * 5.genMapKey 与 DatePartitionRouter.route
+ * 运行: java com.zhengmo.data.transaction.test.ChainedTransactionBenchmark [迭代次数]
+ * </pre>
+ * @author zhengmo
+ */
+public class ChainedTransactionBenchmark {
+    /**
+     * @参与者数量
+     */
+    private static final int[] PARTICIPANTS = {1, 2, 8, 32};
+    /**
+     * @默认事务申明
+     */
+    private static final TransactionDefinition DEFINITION = new DefaultTransactionDefinition();
+    /**
+     * @防止结果被优化掉
+     */
+    private static volatile Object sink;
+    /**
+     * 基准测试操作.
+     */
+    private interface Operation {
+        /**
+         * 执行一次.
+         * @throws Exception 异常
+         */
+        void run() throws Exception;
+    }
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        System.out.printf("%-40s %6s %12s %12s%n", "benchmark", "n", "ns/op", "bytes/op");
+        for (int n : PARTICIPANTS) {
+            final ChainedTransactionManager chainedTx = new ChainedTransactionManager(transactionManagers(n));
+            measure("chained.commit", n, iterations, new Operation() {
+                @Override
+                public void run() {
+                    chainedTx.commit(chainedTx.getTransaction(DEFINITION));
+                }
+            });
+            measure("chained.rollback", n, iterations, new Operation() {
+                @Override
+                public void run() {
+                    chainedTx.rollback(chainedTx.getTransaction(DEFINITION));
+                }
+            });
+            measure("chained.savepoint.commit", n, iterations, new Operation() {
+                @Override
+                public void run() {
+                    TransactionStatus status = chainedTx.getTransaction(DEFINITION);
+                    status.releaseSavepoint(status.createSavepoint());
+                    chainedTx.commit(status);
+                }
+            });
+            final ChainedTransactionManagerUtil util = util(n);
+            final TransactionCallBack<Object> callBack = new TransactionCallBack<Object>() {
+                @Override
+                public Object doTransaction() throws Exception {
+                    return util.getSqlSessionTemplate("key0");
+                }
+            };
+            measure("util.doTransaction", n, iterations, new Operation() {
+                @Override
+                public void run() {
+                    sink = util.doTransaction(callBack);
+                }
+            });
+            final ChainedTransactionManagerUtil lazyUtil = util(n);
+            lazyUtil.setLazyEnlistment(true);
+            measure("util.doTransaction.lazy(1 used)", n, iterations, new Operation() {
+                @Override
+                public void run() {
+                    sink = lazyUtil.doTransaction(new TransactionCallBack<Object>() {
+                        @Override
+                        public Object doTransaction() throws Exception {
+                            return lazyUtil.getSqlSessionTemplate("key0");
+                        }
+                    });
+                }
+            });
+        }
+        measureSqlSessionTemplate(Math.max(1, iterations / 100));
+        measureMapKey(iterations);
+    }
+    /**
+     * genMapKey 与 DatePartitionRouter.route.
+     * @param iterations 迭代次数
+     * @throws Exception 异常
+     */
+    private static void measureMapKey(int iterations) throws Exception {
+        final ChainedTransactionManagerUtil util = new ChainedTransactionManagerUtil();
+        final DatePartitionRouter router = new DatePartitionRouter(2000, 2030, "hash", "sp");
+        final Date date = new Date();
+        measure("genMapKey", 1, iterations, new Operation() {
+            @Override
+            public void run() {
+                sink = util.genMapKey(date, "hash", "sp");
+            }
+        });
+        measure("DatePartitionRouter.route", 1, iterations, new Operation() {
+            @Override
+            public void run() {
+                sink = router.route(date);
+            }
+        });
+    }
+    /**
+     * genSqlSessionTemplate 未命中(每个key首次)与命中.
+     * @param keys key数量
+     * @throws Exception 异常
+     */
+    private static void measureSqlSessionTemplate(final int keys) throws Exception {
+        final SqlSessionFactoryBean bean = new SqlSessionFactoryBean();
+        bean.setConfigLocation(new ByteArrayResource(("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>"
+                + "<!DOCTYPE configuration PUBLIC \"-//mybatis.org//DTD Config 3.0//EN\" \"http://mybatis.org/dtd/mybatis-3-config.dtd\">"
+                + "<configuration></configuration>").getBytes("UTF-8")));
+        final ChainedTransactionManagerUtil util = util(keys);
+        final int[] index = new int[1];
+        measure("genSqlSessionTemplate.miss", keys, keys, new Operation() {
+            @Override
+            public void run() {
+                sink = util.genSqlSessionTemplate(bean, "key" + (index[0]++ % keys));
+            }
+        });
+        measure("genSqlSessionTemplate.hit", keys, keys * 100, new Operation() {
+            @Override
+            public void run() {
+                sink = util.genSqlSessionTemplate(bean, "key" + (index[0]++ % keys));
+            }
+        });
+    }
+    /**
+     * 测量并输出.
+     * @param name 名称
+     * @param n 参数
+     * @param iterations 迭代次数
+     * @param operation 操作
+     * @throws Exception 异常
+     */
+    private static void measure(String name, int n, int iterations, Operation operation) throws Exception {
+        if (!name.endsWith(".miss")) {
+            for (int i = 0; i < iterations; i++) {
+                operation.run();
+            }
+        }
+        long threadId = Thread.currentThread().getId();
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long bytes = threadMXBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        bytes = threadMXBean.getThreadAllocatedBytes(threadId) - bytes;
+        System.out.printf("%-40s %6d %12d %12d%n", name, n, elapsed / iterations, bytes / iterations);
+    }
+    /**
+     * 生成注册了n个桩数据源的工具类.
+     * @param n 数量
+     * @return 工具类
+     */
+    private static ChainedTransactionManagerUtil util(int n) {
+        ChainedTransactionManagerUtil util = new ChainedTransactionManagerUtil();
+        for (int i = 0; i < n; i++) {
+            util.putDataSource("key" + i, stubDataSource());
+        }
+        return util;
+    }
+    /**
+     * 生成n个基于桩数据源的事务管理器.
+     * @param n 数量
+     * @return 事务管理器
+     */
+    private static PlatformTransactionManager[] transactionManagers(int n) {
+        PlatformTransactionManager[] transactionManagers = new PlatformTransactionManager[n];
+        for (int i = 0; i < n; i++) {
+            transactionManagers[i] = new DataSourceTransactionManager(stubDataSource());
+        }
+        return transactionManagers;
+    }
+    /**
+     * 生成桩数据源,连接的所有操作都在内存中完成.
+     * @return 数据源
+     */
+    static DataSource stubDataSource() {
+        final ClassLoader classLoader = ChainedTransactionBenchmark.class.getClassLoader();
+        final Object metaData = Proxy.newProxyInstance(classLoader, new Class<?>[] {DatabaseMetaData.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("supportsSavepoints".equals(method.getName())) {
+                    return Boolean.TRUE;
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+        final Object savepoint = Proxy.newProxyInstance(classLoader, new Class<?>[] {Savepoint.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return defaultValue(proxy, method, args);
+            }
+        });
+        return (DataSource) Proxy.newProxyInstance(classLoader, new Class<?>[] {DataSource.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("getConnection".equals(method.getName())) {
+                    return Proxy.newProxyInstance(classLoader, new Class<?>[] {Connection.class}, new InvocationHandler() {
+                        private boolean autoCommit = true;
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            String name = method.getName();
+                            if ("getAutoCommit".equals(name)) {
+                                return autoCommit;
+                            } else if ("setAutoCommit".equals(name)) {
+                                autoCommit = (Boolean) args[0];
+                                return null;
+                            } else if ("getMetaData".equals(name)) {
+                                return metaData;
+                            } else if ("setSavepoint".equals(name)) {
+                                return savepoint;
+                            }
+                            return defaultValue(proxy, method, args);
+                        }
+                    });
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+    }
+    /**
+     * 桩对象方法的默认返回值.
+     * @param proxy 代理
+     * @param method 方法
+     * @param args 参数
+     * @return 返回值
+     */
+    private static Object defaultValue(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if ("equals".equals(name)) {
+            return proxy == args[0];
+        } else if ("hashCode".equals(name)) {
+            return System.identityHashCode(proxy);
+        } else if ("toString".equals(name)) {
+            return method.getDeclaringClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+        }
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * 文件名：ChainDeadline.java
+ * 描述： ChainDeadline.java
+ * 修改人：zhengmo
+ * 修改时间：2015年11月12日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.util;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.ibatis.executor.statement.StatementHandler;
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.plugin.Intercepts;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.plugin.Plugin;
+import org.apache.ibatis.plugin.Signature;
+import org.apache.ibatis.session.ResultHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.TransactionTimedOutException;
+
+/**
+ * 链式事务的截止时间.
+ *
+ * <pre>
+ * doTransaction开始时创建并绑定到事务线程,{@link ParticipantTask}将其带到分片线程上.
+ * 截止时间到达时由看门狗线程对所有执行中的语句调用{@link Statement#cancel()},语句随即失败,链式事务回滚.
+ * 语句开始前还剩余的时间同时设为语句的queryTimeout,作为驱动端的保护.
+ * 批量语句从prepare起一直登记到事务结束,以便刷新时也能取消.
+ * </pre>
+ * @author zhengmo
+ */
+final class ChainDeadline implements Runnable {
+    /**
+     * 在截止时间内执行语句的mybatis插件,截止时间由当前线程绑定的{@link ChainDeadline}决定.
+     * 创建StatementHandler时线程未绑定截止时间则不生成代理,未设置超时的语句没有额外开销.
+     * @author zhengmo
+     */
+    @Intercepts({@Signature(type = StatementHandler.class, method = "prepare", args = {Connection.class }),
+            @Signature(type = StatementHandler.class, method = "update", args = {Statement.class }),
+            @Signature(type = StatementHandler.class, method = "query", args = {Statement.class, ResultHandler.class }) })
+    static final class StatementInterceptor implements Interceptor {
+        @Override
+        public Object intercept(Invocation invocation) throws Throwable {
+            ChainDeadline deadline = CURRENT.get();
+            if (deadline == null) {
+                return invocation.proceed();
+            }
+            if (invocation.getMethod().getName().equals("prepare")) {
+                long remaining = deadline.checkRemaining();
+                Statement statement = (Statement) invocation.proceed();
+                int seconds = (int) Math.min(Integer.MAX_VALUE, (remaining + 999999999L) / 1000000000L);
+                if (statement.getQueryTimeout() == 0 || statement.getQueryTimeout() > seconds) {
+                    statement.setQueryTimeout(seconds);
+                }
+                deadline.register(statement);
+                return statement;
+            }
+            Statement statement = (Statement) invocation.getArgs()[0];
+            try {
+                deadline.checkRemaining();
+                return invocation.proceed();
+            } finally {
+                deadline.unregister(statement);
+            }
+        }
+        @Override
+        public Object plugin(Object target) {
+            return target instanceof StatementHandler && CURRENT.get() != null ? Plugin.wrap(target, this) : target;
+        }
+        @Override
+        public void setProperties(Properties properties) {
+        }
+    }
+    /**
+     * @日志
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChainDeadline.class);
+    /**
+     * @当前线程的截止时间
+     */
+    private static final ThreadLocal<ChainDeadline> CURRENT = new ThreadLocal<ChainDeadline>();
+    /**
+     * @看门狗,所有链式事务共用
+     */
+    private static final ScheduledThreadPoolExecutor WATCHDOG = createWatchdog();
+    /**
+     * @截止时间({@link System#nanoTime()})
+     */
+    private final long deadlineNanos;
+    /**
+     * @执行中的语句
+     */
+    private final Set<Statement> statements = Collections.newSetFromMap(new IdentityHashMap<Statement, Boolean>());
+    /**
+     * @看门狗任务
+     */
+    private ScheduledFuture<?> watchdogTask;
+    /**
+     * @是否已超时
+     */
+    private volatile boolean expired;
+    /**
+     * 构造函数.
+     * @param timeoutNanos 从现在起的超时时间
+     */
+    private ChainDeadline(long timeoutNanos) {
+        this.deadlineNanos = System.nanoTime() + timeoutNanos;
+    }
+    /**
+     * 创建截止时间并启动看门狗.
+     * @param timeoutNanos 从现在起的超时时间
+     * @return 截止时间
+     */
+    static ChainDeadline start(long timeoutNanos) {
+        ChainDeadline deadline = new ChainDeadline(timeoutNanos);
+        deadline.watchdogTask = WATCHDOG.schedule(deadline, timeoutNanos, TimeUnit.NANOSECONDS);
+        return deadline;
+    }
+    /**
+     * 当前线程的截止时间.
+     * @return 截止时间,没有返回null
+     */
+    static ChainDeadline current() {
+        return CURRENT.get();
+    }
+    /**
+     * 绑定到当前线程.
+     * @param deadline 截止时间,可为null
+     * @return 原来绑定的截止时间
+     */
+    static ChainDeadline bind(ChainDeadline deadline) {
+        ChainDeadline previous = CURRENT.get();
+        if (deadline == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(deadline);
+        }
+        return previous;
+    }
+    /**
+     * 停止看门狗,事务结束时调用.
+     */
+    void stop() {
+        watchdogTask.cancel(false);
+        synchronized (statements) {
+            statements.clear();
+        }
+    }
+    /**
+     * 是否已超过截止时间.
+     * @return boolean
+     */
+    boolean isExpired() {
+        return expired || deadlineNanos - System.nanoTime() <= 0;
+    }
+    /**
+     * 检查剩余时间.
+     * @return 剩余纳秒
+     * @throws TransactionTimedOutException 已超过截止时间
+     */
+    long checkRemaining() throws TransactionTimedOutException {
+        long remaining = deadlineNanos - System.nanoTime();
+        if (expired || remaining <= 0) {
+            throw new TransactionTimedOutException("链式事务已超过截止时间");
+        }
+        return remaining;
+    }
+    /**
+     * 截止时间到达,取消所有执行中的语句.
+     */
+    @Override
+    public void run() {
+        expired = true;
+        Statement[] running;
+        synchronized (statements) {
+            running = statements.toArray(new Statement[statements.size()]);
+        }
+        for (Statement statement : running) {
+            try {
+                statement.cancel();
+            } catch (SQLException e) {
+                LOGGER.warn("Statement cancel exception " + e.getMessage(), e);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Statement cancel exception " + e.getMessage(), e);
+            }
+        }
+    }
+    /**
+     * 登记执行中的语句.
+     * @param statement 语句
+     */
+    private void register(Statement statement) {
+        synchronized (statements) {
+            statements.add(statement);
+        }
+    }
+    /**
+     * 注销执行结束的语句.
+     * @param statement 语句
+     */
+    private void unregister(Statement statement) {
+        synchronized (statements) {
+            statements.remove(statement);
+        }
+    }
+    /**
+     * 创建看门狗线程池.
+     * @return 线程池
+     */
+    private static ScheduledThreadPoolExecutor createWatchdog() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "chained-tx-deadline");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * 文件名：ChainOptions.java
+ * 描述： ChainOptions.java
+ * 修改人：zhengmo
+ * 修改时间：2015年11月2日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.util;
+
+import java.util.concurrent.Executor;
+
+import org.apache.ibatis.session.ExecutorType;
+
+import com.zhengmo.data.transaction.ChainedTransactionManager;
+import com.zhengmo.data.transaction.CommitJournal;
+import com.zhengmo.data.transaction.monitor.ChainedTransactionMetrics;
+
+/**
+ * 链式事务管理器配置. 不可变,修改返回新实例.
+ * @author zhengmo
+ */
+final class ChainOptions {
+    /**
+     * @默认配置
+     */
+    static final ChainOptions DEFAULT = new ChainOptions(false, null, null, null, ReplicaBalancing.ROUND_ROBIN, null, null, null);
+    /**
+     * @是否延迟加入事务
+     */
+    private final boolean lazyEnlistment;
+    /**
+     * @事务统计
+     */
+    private final ChainedTransactionMetrics metrics;
+    /**
+     * @并行回滚执行器
+     */
+    private final Executor rollbackExecutor;
+    /**
+     * @生成的sqlSessionTemplate的执行器类型,为null时使用mybatis配置的默认值
+     */
+    private final ExecutorType executorType;
+    /**
+     * @只读事务选择从库的方式
+     */
+    private final ReplicaBalancing replicaBalancing;
+    /**
+     * @提交日志
+     */
+    private final CommitJournal commitJournal;
+    /**
+     * @参与者排序,为null时按注册顺序
+     */
+    private final ParticipantOrdering ordering;
+    /**
+     * @熔断器,为null时不熔断
+     */
+    private final CircuitBreakers circuitBreakers;
+    /**
+     * 构造函数.
+     * @param lazyEnlistment 是否延迟加入事务
+     * @param metrics 事务统计
+     * @param rollbackExecutor 并行回滚执行器
+     * @param executorType 执行器类型
+     * @param replicaBalancing 选择从库的方式
+     * @param commitJournal 提交日志
+     * @param ordering 参与者排序
+     * @param circuitBreakers 熔断器
+     */
+    private ChainOptions(boolean lazyEnlistment, ChainedTransactionMetrics metrics, Executor rollbackExecutor, ExecutorType executorType, ReplicaBalancing replicaBalancing,
+            CommitJournal commitJournal, ParticipantOrdering ordering, CircuitBreakers circuitBreakers) {
+        this.lazyEnlistment = lazyEnlistment;
+        this.metrics = metrics;
+        this.rollbackExecutor = rollbackExecutor;
+        this.executorType = executorType;
+        this.replicaBalancing = replicaBalancing;
+        this.commitJournal = commitJournal;
+        this.ordering = ordering;
+        this.circuitBreakers = circuitBreakers;
+    }
+    /**
+     * @param newLazyEnlistment 是否延迟加入事务
+     * @return 新配置
+     */
+    ChainOptions withLazyEnlistment(boolean newLazyEnlistment) {
+        return new ChainOptions(newLazyEnlistment, metrics, rollbackExecutor, executorType, replicaBalancing, commitJournal, ordering, circuitBreakers);
+    }
+    /**
+     * @param newMetrics 事务统计
+     * @return 新配置
+     */
+    ChainOptions withMetrics(ChainedTransactionMetrics newMetrics) {
+        return new ChainOptions(lazyEnlistment, newMetrics, rollbackExecutor, executorType, replicaBalancing, commitJournal, ordering, circuitBreakers);
+    }
+    /**
+     * @param newRollbackExecutor 并行回滚执行器
+     * @return 新配置
+     */
+    ChainOptions withRollbackExecutor(Executor newRollbackExecutor) {
+        return new ChainOptions(lazyEnlistment, metrics, newRollbackExecutor, executorType, replicaBalancing, commitJournal, ordering, circuitBreakers);
+    }
+    /**
+     * @param newExecutorType 执行器类型
+     * @return 新配置
+     */
+    ChainOptions withExecutorType(ExecutorType newExecutorType) {
+        return new ChainOptions(lazyEnlistment, metrics, rollbackExecutor, newExecutorType, replicaBalancing, commitJournal, ordering, circuitBreakers);
+    }
+    /**
+     * @param newReplicaBalancing 选择从库的方式
+     * @return 新配置
+     */
+    ChainOptions withReplicaBalancing(ReplicaBalancing newReplicaBalancing) {
+        return new ChainOptions(lazyEnlistment, metrics, rollbackExecutor, executorType, newReplicaBalancing, commitJournal, ordering, circuitBreakers);
+    }
+    /**
+     * @param newCommitJournal 提交日志
+     * @return 新配置
+     */
+    ChainOptions withCommitJournal(CommitJournal newCommitJournal) {
+        return new ChainOptions(lazyEnlistment, metrics, rollbackExecutor, executorType, replicaBalancing, newCommitJournal, ordering, circuitBreakers);
+    }
+    /**
+     * @param newOrdering 参与者排序
+     * @return 新配置
+     */
+    ChainOptions withOrdering(ParticipantOrdering newOrdering) {
+        return new ChainOptions(lazyEnlistment, metrics, rollbackExecutor, executorType, replicaBalancing, commitJournal, newOrdering, circuitBreakers);
+    }
+    /**
+     * @param newCircuitBreakers 熔断器
+     * @return 新配置
+     */
+    ChainOptions withCircuitBreakers(CircuitBreakers newCircuitBreakers) {
+        return new ChainOptions(lazyEnlistment, metrics, rollbackExecutor, executorType, replicaBalancing, commitJournal, ordering, newCircuitBreakers);
+    }
+    /**
+     * 将配置应用到链式事务管理器.
+     * @param chainedTx 链式事务管理器
+     * @param keys 按槽位排列的数据源key
+     * @param chosen 只读视图各槽位选中的从库,非视图为null
+     */
+    void apply(ChainedTransactionManager chainedTx, String[] keys, ReplicaGroup.Replica[] chosen) {
+        chainedTx.setLazyEnlistment(lazyEnlistment);
+        chainedTx.setRollbackExecutor(rollbackExecutor);
+        if (metrics != null) {
+            chainedTx.setTransactionListener(metrics.listener(keys));
+        }
+        if (ordering != null) {
+            chainedTx.setTransactionListener(ordering.listener(chainedTx.getTransactionListener(), keys));
+        }
+        if (circuitBreakers != null) {
+            chainedTx.setTransactionListener(circuitBreakers.listener(chainedTx.getTransactionListener(), keys, chosen));
+        }
+        if (commitJournal != null) {
+            chainedTx.setCommitJournal(commitJournal, keys);
+        }
+    }
+    /**
+     * @return 是否延迟加入事务
+     */
+    boolean isLazyEnlistment() {
+        return lazyEnlistment;
+    }
+    /**
+     * @return 事务统计
+     */
+    ChainedTransactionMetrics getMetrics() {
+        return metrics;
+    }
+    /**
+     * @return 并行回滚执行器
+     */
+    Executor getRollbackExecutor() {
+        return rollbackExecutor;
+    }
+    /**
+     * @return 执行器类型
+     */
+    ExecutorType getExecutorType() {
+        return executorType;
+    }
+    /**
+     * @return 选择从库的方式
+     */
+    ReplicaBalancing getReplicaBalancing() {
+        return replicaBalancing;
+    }
+    /**
+     * @return 提交日志
+     */
+    CommitJournal getCommitJournal() {
+        return commitJournal;
+    }
+    /**
+     * @return 参与者排序
+     */
+    ParticipantOrdering getOrdering() {
+        return ordering;
+    }
+    /**
+     * @return 熔断器
+     */
+    CircuitBreakers getCircuitBreakers() {
+        return circuitBreakers;
+    }
+}
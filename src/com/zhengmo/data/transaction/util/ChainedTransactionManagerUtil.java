@@ -9,30 +9,64 @@ package com.zhengmo.data.transaction.util;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.UndeclaredThrowableException;
+import java.sql.Connection;
 import java.sql.SQLException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.sql.DataSource;
 
+import org.apache.ibatis.exceptions.PersistenceException;
+import org.apache.ibatis.executor.BatchResult;
 import org.apache.ibatis.mapping.DatabaseIdProvider;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.ExecutorType;
+import org.mybatis.spring.MyBatisExceptionTranslator;
 import org.mybatis.spring.SqlSessionFactoryBean;
+import org.mybatis.spring.SqlSessionHolder;
 import org.mybatis.spring.SqlSessionTemplate;
-import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionException;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.TransactionSystemException;
+import org.springframework.transaction.TransactionTimedOutException;
 import org.springframework.transaction.support.DefaultTransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import com.zhengmo.data.transaction.ChainedTransactionManager;
+import com.zhengmo.data.transaction.CommitJournal;
 import com.zhengmo.data.transaction.TransactionCallBack;
+import com.zhengmo.data.transaction.monitor.ChainedTransactionMetrics;
 
 /**
  * 链式事务工具类.
@@ -46,29 +80,157 @@ import com.zhengmo.data.transaction.TransactionCallBack;
  * });
  * ##############使用方法
  * </pre>
+ * 设置{@link #setLazyEnlistment(boolean)}后,数据源仅在回调中首次调用genSqlSessionTemplate/getSqlSessionTemplate时才开启事务.
+ * 实例线程安全,可被多个线程共享;数据源可随时添加/移除,进行中的事务使用开始时的数据源快照.
+ * {@link #doTransactionAsync(TransactionCallBack)}在{@link #setAsyncExecutor(Executor)}设置的执行器上执行整个链式事务.
+ * 事务中可用{@link #scatterGather(SqlSessionFactoryBean, Collection, ShardCallBack)}在各分片上并行执行查询,耗时取决于最慢的分片;
+ * 结果量大时用{@link #openCursor(SqlSessionFactoryBean, Collection, String, Object, Comparator, int)}流式读取.
+ * {@link #setExecutorType(ExecutorType)}为BATCH时各分片的写语句批量累积,在{@link #flushStatements()}或提交前并行刷新.
+ * {@link #setResultCache(ShardResultCache)}后{@link #selectListCached(SqlSessionFactoryBean, String, String, Object)}跨事务缓存查询结果,提交后才失效.
+ * 只有一个数据源且未延迟加入时,事务直接使用该数据源的事务管理器,异常与链式事务一致.
+ * {@link #doTransaction(TransactionCallBack, long, TimeUnit)}为整个链式事务设置截止时间,超时的语句被取消,事务并行回滚.
+ * {@link #setRetryPolicy(TransactionRetryPolicy)}后因死锁或锁等待超时回滚的事务自动重试.
+ * {@link #doTransaction(TransactionDefinition, TransactionCallBack)}的申明为只读时,有从库({@link #putReplica(String, DataSource)})的key路由到从库,连接设为只读,不记录回滚点.
+ * 启动时用{@link #warmUp(SqlSessionFactoryBean, Collection, int, long, TimeUnit)}并行构建各分片的sqlSessionTemplate并预先建立连接.
+ * 分片很多时用{@link #setTemplateCacheLimits(int, long, TimeUnit, TemplateEvictionListener)}限制缓存的sqlSessionTemplate数量,淘汰的模板使用时重新生成.
  * @author zhengmo
  */
 public class ChainedTransactionManagerUtil {
     /**
-     * @事务是否开始
+     * 当前线程的链式事务.
+     * @author zhengmo
      */
-    private boolean isBegin = false;
+    private static class TransactionHolder {
+        /**
+         * 事务开始时的数据源快照.
+         */
+        private final DataSourceRegistry registry;
+        /**
+         * 事务状态.
+         */
+        private final TransactionStatus status;
+        /**
+         * 是否只读.
+         */
+        private final boolean readOnly;
+        /**
+         * 事务中打开的游标,事务结束前关闭.
+         */
+        private List<ShardCursor<?>> cursors;
+        /**
+         * 最外层事务,固定的模板记在最外层上,外层结束时才释放;自身为最外层时为null.
+         */
+        private final TransactionHolder outermost;
+        /**
+         * 事务中固定的sqlSessionTemplate缓存条目.
+         */
+        private Set<TemplateCache.Entry> pinnedTemplates;
+        /**
+         * 构造函数.
+         * @param registry 数据源快照
+         * @param status 事务状态
+         * @param readOnly 是否只读
+         * @param outer 外层事务,没有为null
+         */
+        TransactionHolder(DataSourceRegistry registry, TransactionStatus status, boolean readOnly, TransactionHolder outer) {
+            this.registry = registry;
+            this.status = status;
+            this.readOnly = readOnly;
+            this.outermost = outer == null ? null : outer.outermost == null ? outer : outer.outermost;
+        }
+        /**
+         * 固定缓存条目,直到最外层事务结束.
+         * @param cache 缓存
+         * @param entry 条目
+         * @return 是否固定,条目已被淘汰时返回false
+         */
+        boolean pin(TemplateCache<?> cache, TemplateCache.Entry entry) {
+            if (outermost != null) {
+                return outermost.pin(cache, entry);
+            }
+            if (pinnedTemplates != null && pinnedTemplates.contains(entry)) {
+                return true;
+            }
+            if (!cache.pin(entry)) {
+                return false;
+            }
+            if (pinnedTemplates == null) {
+                pinnedTemplates = Collections.newSetFromMap(new IdentityHashMap<TemplateCache.Entry, Boolean>());
+            }
+            pinnedTemplates.add(entry);
+            return true;
+        }
+        /**
+         * 释放固定的缓存条目,只有最外层事务结束时释放.
+         */
+        void unpinTemplates() {
+            if (outermost == null && pinnedTemplates != null) {
+                for (TemplateCache.Entry entry : pinnedTemplates) {
+                    entry.unpin();
+                }
+                pinnedTemplates = null;
+            }
+        }
+        /**
+         * 关闭事务中打开的游标.
+         */
+        void closeCursors() {
+            if (cursors != null) {
+                for (ShardCursor<?> cursor : cursors) {
+                    cursor.close();
+                }
+                cursors = null;
+            }
+        }
+    }
+    /**
+     * @数据源注册表,写时复制
+     */
+    private final AtomicReference<DataSourceRegistry> registry = new AtomicReference<DataSourceRegistry>(DataSourceRegistry.EMPTY);
+    /**
+     * @查询结果缓存,未设置时为null
+     */
+    private final AtomicReference<ShardResultCache> resultCache = new AtomicReference<ShardResultCache>();
+    /**
+     * @重试策略,未设置时不重试
+     */
+    private volatile TransactionRetryPolicy retryPolicy;
+    /**
+     * @异步事务执行器,未设置时使用默认的有界线程池
+     */
+    private volatile Executor asyncExecutor;
+    /**
+     * @当前线程的链式事务
+     */
+    private final ThreadLocal<TransactionHolder> currentTransaction = new ThreadLocal<TransactionHolder>();
     /**
      * @sqlSessionTemplate缓存
      */
-    private final Map<String, SqlSessionTemplate> sqlSessionTemplateCacheMap = new ConcurrentHashMap<String, SqlSessionTemplate>();
+    private final TemplateCache<String> sqlSessionTemplateCacheMap = new TemplateCache<String>();
+    /**
+     * @从库sqlSessionTemplate缓存
+     */
+    private final TemplateCache<DataSource> replicaTemplateCacheMap = new TemplateCache<DataSource>();
+    /**
+     * @生成各key的sqlSessionTemplate所用的原始工厂,模板被淘汰后据此重新生成
+     */
+    private final ConcurrentMap<String, SqlSessionFactoryBean> templateSourceMap = new ConcurrentHashMap<String, SqlSessionFactoryBean>();
     /**
-     * @数据源缓存
+     * @已解析的mybatis配置缓存,每个原始工厂只解析一次
      */
-    private final Map<String, Object> dataSourceCacheMap = new ConcurrentHashMap<String, Object>();
+    private final ConcurrentMap<SqlSessionFactoryBean, FutureTask<Configuration>> configurationCacheMap = new ConcurrentHashMap<SqlSessionFactoryBean, FutureTask<Configuration>>();
     /**
-     * @事务管理器缓存
+     * @日志
      */
-    private final Map<String, Object> txCacheMap = new ConcurrentHashMap<String, Object>();
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChainedTransactionManagerUtil.class);
     /**
-     * @临时工厂
+     * @默认事务申明
      */
-    private final SqlSessionFactoryBean tmpFactory = new SqlSessionFactoryBean();
+    private static final TransactionDefinition DEFAULT_DEFINITION = new DefaultTransactionDefinition(TransactionDefinition.PROPAGATION_REQUIRED);
+    /**
+     * @只读事务的回滚点
+     */
+    private static final Object READ_ONLY_SAVEPOINT = new Object();
     /**
      * @数据源集合Key
      */
@@ -89,121 +251,417 @@ public class ChainedTransactionManagerUtil {
      * @return T t
      */
     public <T> T doTransaction(TransactionCallBack<T> callBack) {
-        List<PlatformTransactionManager> dstx = getTxList();
-        if (dstx == null || dstx.size() == 0) {
+        return doTransaction(DEFAULT_DEFINITION, callBack);
+    }
+    /**
+     * 按事务申明开始事务.
+     *
+     * <pre>
+     * 申明(传播行为,隔离级别,超时,只读)传给链上的每个数据源. 只读时有从库的key在事务开始时按{@link #setReplicaBalancing(ReplicaBalancing)}选择一个从库,
+     * 整个事务(包括scatterGather,openCursor)都在该从库上执行,连接设为只读,回滚点操作直接跳过.
+     * 申明有超时时即为整个链式事务的截止时间,见{@link #doTransaction(TransactionCallBack, long, TimeUnit)}.
+     * </pre>
+     * @param <T> t 返回结果
+     * @param definition 事务申明
+     * @param callBack 回调函数
+     * @return T t
+     */
+    public <T> T doTransaction(TransactionDefinition definition, TransactionCallBack<T> callBack) {
+        if (definition == null) {
+            throw new IllegalArgumentException("definition 不能为空");
+        }
+        return doTransaction(definition, callBack, definition.getTimeout() > 0 ? TimeUnit.SECONDS.toNanos(definition.getTimeout()) : 0L);
+    }
+    /**
+     * 在截止时间内执行事务.
+     *
+     * <pre>
+     * 各数据源开启事务时以截止前的剩余时间作为自己的超时,超过截止时间后不再加入新的数据源.
+     * 截止时间到达时,包括分片线程在内所有执行中的语句被{@link java.sql.Statement#cancel()}取消,链式事务回滚;
+     * 此时各连接在回滚执行器(未设置时为异步执行器)上并行回滚,锁的持有时间受截止时间限制,而不是受最慢的分片限制.
+     * 回调在截止时间后才返回时不再提交,抛出{@link TransactionTimedOutException}并回滚.
+     * </pre>
+     * @param <T> t 返回结果
+     * @param callBack 回调函数
+     * @param timeout 超时时间
+     * @param unit 时间单位
+     * @return T t
+     */
+    public <T> T doTransaction(TransactionCallBack<T> callBack, long timeout, TimeUnit unit) {
+        long timeoutNanos = unit.toNanos(timeout);
+        if (timeoutNanos <= 0) {
+            throw new IllegalArgumentException("timeout 必须大于0");
+        }
+        DefaultTransactionDefinition definition = new DefaultTransactionDefinition(TransactionDefinition.PROPAGATION_REQUIRED);
+        definition.setTimeout((int) Math.min(Integer.MAX_VALUE, (timeoutNanos + 999999999L) / 1000000000L));
+        return doTransaction(definition, callBack, timeoutNanos);
+    }
+    /**
+     * 事务开始,按重试策略重试. 嵌套在其它链式事务中时不重试,由外层事务决定.
+     * @param <T> t 返回结果
+     * @param definition 事务申明
+     * @param callBack 回调函数
+     * @param timeoutNanos 截止时间,0为不限,包括所有重试
+     * @return T t
+     */
+    private <T> T doTransaction(TransactionDefinition definition, TransactionCallBack<T> callBack, long timeoutNanos) {
+        TransactionRetryPolicy policy = retryPolicy;
+        if (policy == null || currentTransaction.get() != null) {
+            return doTransactionOnce(definition, callBack, timeoutNanos);
+        }
+        policy.onTransaction();
+        long deadlineNanos = System.nanoTime() + timeoutNanos;
+        TransactionDefinition attemptDefinition = definition;
+        long attemptTimeoutNanos = timeoutNanos;
+        for (int attempt = 1;; attempt++) {
+            try {
+                return doTransactionOnce(attemptDefinition, callBack, attemptTimeoutNanos);
+            } catch (RuntimeException ex) {
+                TransactionRetryPolicy.Cause cause = policy.classify(ex);
+                if (cause == null) {
+                    throw ex;
+                }
+                long backoffNanos = policy.backoffNanos(attempt);
+                if (timeoutNanos > 0) {
+                    attemptTimeoutNanos = deadlineNanos - System.nanoTime() - backoffNanos;
+                    if (attemptTimeoutNanos <= 0) {
+                        throw ex;
+                    }
+                    DefaultTransactionDefinition remaining = new DefaultTransactionDefinition(definition);
+                    remaining.setTimeout((int) Math.min(Integer.MAX_VALUE, (attemptTimeoutNanos + 999999999L) / 1000000000L));
+                    attemptDefinition = remaining;
+                }
+                if (!policy.acquireRetry(cause, attempt)) {
+                    throw ex;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.sleep(backoffNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+            }
+        }
+    }
+    /**
+     * 执行一次事务.
+     * @param <T> t 返回结果
+     * @param definition 事务申明
+     * @param callBack 回调函数
+     * @param timeoutNanos 截止时间,0为不限
+     * @return T t
+     */
+    private <T> T doTransactionOnce(TransactionDefinition definition, TransactionCallBack<T> callBack, long timeoutNanos) {
+        boolean readOnly = definition.isReadOnly();
+        reorderIfDue();
+        DataSourceRegistry snapshot = readOnly ? registry.get().readView() : registry.get();
+        PlatformTransactionManager chainedTx = snapshot.getEntryTransactionManager();
+        if (chainedTx == null) {
             throw new RuntimeException("未设置数据源或事务管理器未初始化");
         }
+        CircuitBreakers breakers = snapshot.getOptions().getCircuitBreakers();
+        if (breakers != null && !snapshot.getOptions().isLazyEnlistment()) {
+            for (int slot = 0; slot < snapshot.size(); slot++) {
+                if (!snapshot.isReplicaSlot(slot)) {
+                    breakers.acquire(snapshot.getKey(slot));
+                }
+            }
+        }
         T result = null;
-        ChainedTransactionManager chainedTx = new ChainedTransactionManager(dstx.toArray(new PlatformTransactionManager[dstx.size()]));
-        DefaultTransactionDefinition def = new DefaultTransactionDefinition();
-        def.setIsolationLevel(TransactionDefinition.ISOLATION_DEFAULT);
-        TransactionStatus status = chainedTx.getTransaction(def);
+        ChainDeadline deadline = timeoutNanos > 0 ? ChainDeadline.start(timeoutNanos) : null;
+        TransactionStatus status;
         try {
-            isBegin = true;
-            result = callBack.doTransaction();
+            status = chainedTx.getTransaction(definition);
+        } catch (RuntimeException ex) {
+            if (deadline != null) {
+                deadline.stop();
+            }
+            throw ex;
+        }
+        ChainDeadline previousDeadline = deadline == null ? null : ChainDeadline.bind(deadline);
+        TransactionHolder previous = currentTransaction.get();
+        final TransactionHolder holder = new TransactionHolder(snapshot, status, readOnly, previous);
+        currentTransaction.set(holder);
+        ShardResultCache cache = null;
+        List<Object> pendingWrites = null;
+        if (!readOnly && snapshot.getOptions().getExecutorType() == ExecutorType.BATCH) {
+            Runnable callback = new Runnable() {
+                @Override
+                public void run() {
+                    flushStatements(holder);
+                }
+            };
+            if (chainedTx instanceof SingleParticipantTransactionManager) {
+                ((SingleParticipantTransactionManager) chainedTx).registerFlushCallback(status, callback);
+            } else {
+                ((ChainedTransactionManager) chainedTx).registerFlushCallback(status, callback);
+            }
+        }
+        try {
+            try {
+                result = callBack.doTransaction();
+            } finally {
+                holder.closeCursors();
+                // 结束时再取缓存,事务中途设置的缓存记录的写操作也能清理
+                cache = resultCache.get();
+                if (cache != null) {
+                    pendingWrites = cache.collectPending(snapshot);
+                }
+            }
+            if (deadline != null) {
+                deadline.checkRemaining();
+            }
             chainedTx.commit(status);
         } catch (RuntimeException ex) {
-            rollbackOnException(chainedTx, status, ex);
+            rollbackOnException(chainedTx, status, deadline, ex);
             ex.printStackTrace();
             throw ex;
         } catch (Error err) {
-            rollbackOnException(chainedTx, status, err);
+            rollbackOnException(chainedTx, status, deadline, err);
             err.printStackTrace();
             throw err;
         } catch (Exception ex) {
-            rollbackOnException(chainedTx, status, ex);
+            rollbackOnException(chainedTx, status, deadline, ex);
             ex.printStackTrace();
             throw new UndeclaredThrowableException(ex, "TransactionCallback threw undeclared checked exception");
         } catch (Throwable e) {
-            rollbackOnException(chainedTx, status, e);
+            rollbackOnException(chainedTx, status, deadline, e);
             e.printStackTrace();
             throw e;
+        } finally {
+            if (pendingWrites != null) {
+                // 回滚时已设置rollbackOnly;提交失败时无法确定各分片结果,按已提交处理使缓存失效
+                cache.complete(pendingWrites, !status.isRollbackOnly());
+            }
+            holder.unpinTemplates();
+            if (previous == null) {
+                currentTransaction.remove();
+            } else {
+                currentTransaction.set(previous);
+            }
+            if (deadline != null) {
+                deadline.stop();
+                ChainDeadline.bind(previousDeadline);
+            }
         }
         return result;
     }
     /**
-     * 根据时间按年生成key.
+     * 异步执行事务. 整个链式事务(开启,回调,提交/回滚)在异步执行器的线程上完成,调用线程不阻塞.
+     * @param <T> t 返回结果
+     * @param callBack 回调函数
+     * @return 事务结束后完成的Future
+     */
+    public <T> Future<T> doTransactionAsync(TransactionCallBack<T> callBack) {
+        return doTransactionAsync(callBack, getAsyncExecutor());
+    }
+    /**
+     * 在指定执行器上异步执行事务. 执行器不能在调用线程上直接运行任务(如CallerRunsPolicy),否则会并入调用线程的事务.
+     * @param <T> t 返回结果
+     * @param callBack 回调函数
+     * @param executor 执行器,如有界线程池或虚拟线程执行器
+     * @return 事务结束后完成的Future
+     */
+    public <T> Future<T> doTransactionAsync(final TransactionCallBack<T> callBack, Executor executor) {
+        if (callBack == null || executor == null) {
+            throw new IllegalArgumentException("callBack 或 executor 不能为空");
+        }
+        FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return doTransactionOnWorker(callBack);
+            }
+        });
+        executor.execute(task);
+        return task;
+    }
+    /**
+     * 在当前链式事务的多个分片上并行执行回调并收集结果.
+     *
+     * <pre>
+     * 必须在doTransaction的回调中调用. 每个分片的回调在异步执行器的线程上运行,该线程绑定此分片在链式事务中的连接,
+     * 因此读写都在链式事务内,提交/回滚仍由链式事务负责. 执行器繁忙时尚未开始的分片由调用线程自己执行.
+     * 同一分片的连接同一时刻只被一个线程使用;全部分片结束后才返回,有异常时抛出第一个分片(按keys顺序)的异常.
+     * </pre>
+     * @param <T> t 返回结果
+     * @param orignalSqlSessionFactory 原始的SqlSessionFactoryBean
+     * @param keys 数据源key,重复的key只执行一次
+     * @param callBack 分片回调函数
+     * @return key与结果,按keys顺序排列
+     */
+    public <T> Map<String, T> scatterGather(SqlSessionFactoryBean orignalSqlSessionFactory, Collection<String> keys, final ShardCallBack<T> callBack) {
+        if (keys == null || callBack == null) {
+            throw new IllegalArgumentException("keys 或 callBack 不能为空");
+        }
+        DataSourceRegistry snapshot = currentHolder().registry;
+        Map<String, FutureTask<T>> tasks = new LinkedHashMap<String, FutureTask<T>>(keys.size() * 2);
+        for (final String key : keys) {
+            if (tasks.containsKey(key)) {
+                continue;
+            }
+            final SqlSessionTemplate sqlSessionTemplate = genSqlSessionTemplate(orignalSqlSessionFactory, key);
+            tasks.put(key, new FutureTask<T>(new ParticipantTask<T>(snapshot.getDataSource(key)) {
+                @Override
+                protected T callInParticipant() throws Exception {
+                    return callBack.doInShard(key, sqlSessionTemplate);
+                }
+            }));
+        }
+        return invokeAll(tasks, "ShardCallBack");
+    }
+    /**
+     * 在当前链式事务的多个分片上打开流式游标.
+     *
+     * <pre>
+     * 必须在doTransaction的回调中调用. 每个分片由独立的生产线程在该分片的事务连接上执行查询,
+     * 不占用异步执行器,避免归并时等待排队中的分片造成死锁. 内存占用为分片数乘以bufferSize.
+     * 游标读完或关闭前不要在调用线程上使用这些分片,回调结束时未关闭的游标会被自动关闭.
+     * </pre>
+     * @param <T> t 结果
+     * @param orignalSqlSessionFactory 原始的SqlSessionFactoryBean
+     * @param keys 数据源key,重复的key只读取一次
+     * @param statement 语句id
+     * @param parameter 参数
+     * @param comparator 比较器,各分片结果需已按其排序;为null时按keys顺序连接
+     * @param bufferSize 每个分片的缓冲行数
+     * @return 游标
+     */
+    public <T> ShardCursor<T> openCursor(SqlSessionFactoryBean orignalSqlSessionFactory, Collection<String> keys, String statement, Object parameter, Comparator<? super T> comparator,
+            int bufferSize) {
+        if (keys == null || statement == null || bufferSize <= 0) {
+            throw new IllegalArgumentException("keys 或 statement 不能为空且 bufferSize 必须大于0");
+        }
+        TransactionHolder holder = currentHolder();
+        ShardCursor<T> cursor = new ShardCursor<T>(statement, parameter, bufferSize, comparator, keys.size());
+        Set<String> added = new HashSet<String>(keys.size() * 2);
+        for (String key : keys) {
+            if (added.add(key)) {
+                SqlSessionTemplate sqlSessionTemplate = genSqlSessionTemplate(orignalSqlSessionFactory, key);
+                cursor.addShard(key, holder.registry.getDataSource(key), sqlSessionTemplate);
+            }
+        }
+        if (holder.cursors == null) {
+            holder.cursors = new ArrayList<ShardCursor<?>>(2);
+        }
+        holder.cursors.add(cursor);
+        return cursor;
+    }
+    /**
+     * 刷新当前链式事务中各分片的批量语句,各分片在自己的事务连接上并行执行.
+     *
+     * <pre>
+     * 批量模式({@link #setExecutorType(ExecutorType)}为BATCH)下update/insert/delete只累积语句,返回值无意义;
+     * 需要影响行数时调用本方法,提交前未刷新的语句也会由链式事务并行刷新.
+     * </pre>
+     * @return key与各分片的批量结果(含影响行数),按数据源顺序排列,没有待刷新语句的分片不包含在内
+     */
+    public Map<String, List<BatchResult>> flushStatements() {
+        return flushStatements(currentHolder());
+    }
+    /**
+     * 经过查询结果缓存查询分片. 未设置{@link #setResultCache(ShardResultCache)}时直接查询.
+     * @param <E> e
+     * @param orignalSqlSessionFactory 原始的SqlSessionFactoryBean
+     * @param key 数据源key
+     * @param statement 语句id
+     * @param parameter 参数
+     * @return 结果,经过缓存时只读
+     */
+    public <E> List<E> selectListCached(SqlSessionFactoryBean orignalSqlSessionFactory, String key, String statement, Object parameter) {
+        SqlSessionTemplate sqlSessionTemplate = genSqlSessionTemplate(orignalSqlSessionFactory, key);
+        ShardResultCache cache = resultCache.get();
+        if (cache == null) {
+            return sqlSessionTemplate.selectList(statement, parameter);
+        }
+        // 从库上的结果也按主库缓存,主库提交后一并失效
+        return cache.selectList(sqlSessionTemplate, currentRegistry().getPrimaryDataSource(key), statement, parameter);
+    }
+    /**
+     * 根据时间按年生成key. 频繁路由时使用{@link DatePartitionRouter},其预先生成key,路由时不创建对象.
      * @param date 时间
      * @param otherKey hashKey,spKey
      * @return key eg.2015_hash_sp
      */
     public String genMapKey(Date date, String... otherKey) {
-        StringBuffer sb = new StringBuffer();
-        sb.append(new SimpleDateFormat("yyyy").format(date));
-        if (otherKey != null && otherKey.length > 0) {
-            for (String key : otherKey) {
-                sb.append("_");
-                sb.append(key);
-            }
-        }
-        return sb.toString();
+        return DatePartitionRouter.buildKey(DatePartitionRouter.yearOf(date.getTime(), TimeZone.getDefault()), DatePartitionRouter.suffix(otherKey));
     }
     /**
      * 生成SqlSessionTemplate. 如果缓存key已在，则返回缓存数据
      * 
+     * <pre>
+     * 每个原始工厂的mybatis配置只解析一次,各数据源的SqlSessionFactory共享解析结果.
+     * </pre>
      * @param orignalSqlSessionFactory 原始的SqlSessionFactoryBean 反射调用获取configLocation
      * @param key 如有不为NULL，表示缓存的值
      * @return SqlSessionTemplate
      */
     public SqlSessionTemplate genSqlSessionTemplate(SqlSessionFactoryBean orignalSqlSessionFactory, String key) {
-        if (!dataSourceCacheMap.containsKey(key)) {
+        DataSourceRegistry snapshot = currentRegistry();
+        int slot = snapshot.slotOf(key);
+        if (slot < 0) {
             throw new RuntimeException("该key所在的数据源不在链式事务上");
         }
         checkMapKey(key);
-        SqlSessionTemplate sqlSessionTemplate = (SqlSessionTemplate) sqlSessionTemplateCacheMap.get(key);
+        DataSource ds = snapshot.getDataSource(slot);
+        ExecutorType executorType = snapshot.getOptions().getExecutorType();
+        SqlSessionTemplate sqlSessionTemplate = getCachedSqlSessionTemplate(key, ds, executorType);
         if (sqlSessionTemplate != null) {
+            enlist(slot);
             return sqlSessionTemplate;
         }
         try {
             if (orignalSqlSessionFactory == null) {
                 throw new RuntimeException("orignalSqlSessionFactory 不能为NULL");
             }
-            DataSource ds = (DataSource) dataSourceCacheMap.get(key);
-            if (ds == null) {
-                throw new RuntimeException("该key所在的数据源为NULL");
-            }
-            Field field = orignalSqlSessionFactory.getClass().getDeclaredField("configLocation");
-            field.setAccessible(true);
-            Object configLocation = field.get(orignalSqlSessionFactory);
-            tmpFactory.setConfigLocation((org.springframework.core.io.Resource) configLocation);
-            tmpFactory.setDatabaseIdProvider(new DatabaseIdProvider() {
-                @Override
-                public void setProperties(Properties arg0) {
+            Configuration configuration = getConfiguration(orignalSqlSessionFactory, ds);
+            templateSourceMap.put(key, orignalSqlSessionFactory);
+            sqlSessionTemplate = new SqlSessionTemplate(new ShardSqlSessionFactory(configuration, ds, resultCache), executorType != null ? executorType : configuration.getDefaultExecutorType(),
+                    new MyBatisExceptionTranslator(ds, true));
+            // 只缓存当前注册表中的数据源与执行器类型,已移除或已替换的数据源仅供进行中的事务使用
+            DataSourceRegistry latest = registry.get();
+            if (latest.isReplica(key, ds) && latest.getOptions().getExecutorType() == executorType) {
+                SqlSessionTemplate cached = replicaTemplateCacheMap.putIfAbsent(ds, sqlSessionTemplate);
+                if (cached != null) {
+                    if (isBoundTo(cached, ds, executorType)) {
+                        sqlSessionTemplate = cached;
+                    } else {
+                        replicaTemplateCacheMap.replace(ds, cached, sqlSessionTemplate);
+                    }
                 }
-                @Override
-                public String getDatabaseId(DataSource arg0) throws SQLException {
-                    return null;
+            } else if (latest.getDataSource(key) == ds && latest.getOptions().getExecutorType() == executorType) {
+                SqlSessionTemplate cached = sqlSessionTemplateCacheMap.get(key);
+                if (cached == null) {
+                    cached = sqlSessionTemplateCacheMap.putIfAbsent(key, sqlSessionTemplate);
+                    if (cached != null && isBoundTo(cached, ds, executorType)) {
+                        sqlSessionTemplate = cached;
+                    }
+                } else if (isBoundTo(cached, ds, executorType)) {
+                    sqlSessionTemplate = cached;
+                } else {
+                    sqlSessionTemplateCacheMap.replace(key, cached, sqlSessionTemplate);
                 }
-            });
-            tmpFactory.setDataSource(ds);
-            tmpFactory.afterPropertiesSet();
-            sqlSessionTemplate = new SqlSessionTemplate(tmpFactory.getObject());
-            if (sqlSessionTemplate != null && key != null) {
-                sqlSessionTemplateCacheMap.put(key, sqlSessionTemplate);
+            }
+            // 固定到当前事务,事务结束前不被淘汰
+            SqlSessionTemplate pinned = getCachedSqlSessionTemplate(key, ds, executorType);
+            if (pinned != null) {
+                sqlSessionTemplate = pinned;
             }
         } catch (Throwable e) {
             e.printStackTrace();
             throw new RuntimeException(e);
         }
+        enlist(slot);
         return sqlSessionTemplate;
     }
     /**
      * @获取数据源列表
      * @return 返回List
      */
-    @SuppressWarnings({"unchecked"})
     public List<DataSource> getDataSources() {
-        List<DataSource> list = new ArrayList<DataSource>();
-        if (dataSourceCacheMap == null || dataSourceCacheMap.isEmpty()) {
-            return list;
-        }
-        for (String key : dataSourceCacheMap.keySet()) {
-            Object obj = dataSourceCacheMap.get(key);
-            if (obj instanceof List) {
-                list.addAll((List<DataSource>) obj);
-            } else if (obj instanceof DataSource) {
-                list.add((DataSource) obj);
-            }
+        DataSourceRegistry snapshot = registry.get();
+        List<DataSource> list = new ArrayList<DataSource>(snapshot.size());
+        for (int slot = 0; slot < snapshot.size(); slot++) {
+            list.add(snapshot.getDataSource(slot));
         }
         return list;
     }
@@ -214,7 +672,21 @@ public class ChainedTransactionManagerUtil {
      */
     public SqlSessionTemplate getSqlSessionTemplate(String key) {
         if (!DATASOURCE_LIST.equals(key) && !DATASOURCE_TX_LIST.equals(key)) {
-            return (SqlSessionTemplate) sqlSessionTemplateCacheMap.get(key);
+            DataSourceRegistry snapshot = currentRegistry();
+            int slot = snapshot.slotOf(key);
+            if (slot < 0) {
+                return (SqlSessionTemplate) sqlSessionTemplateCacheMap.get(key);
+            }
+            enlist(slot);
+            SqlSessionTemplate sqlSessionTemplate = getCachedSqlSessionTemplate(key, snapshot.getDataSource(slot), null);
+            if (sqlSessionTemplate == null) {
+                // 已被淘汰时用原来的工厂重新生成
+                SqlSessionFactoryBean source = templateSourceMap.get(key);
+                if (source != null) {
+                    return genSqlSessionTemplate(source, key);
+                }
+            }
+            return sqlSessionTemplate;
         } else {
             throw new IllegalArgumentException("key 不能为:" + DATASOURCE_LIST + " 或 " + DATASOURCE_TX_LIST);
         }
@@ -223,39 +695,242 @@ public class ChainedTransactionManagerUtil {
      * @获取事务管理器列表
      * @return 返回List
      */
-    @SuppressWarnings("unchecked")
     public List<PlatformTransactionManager> getTxList() {
-        List<PlatformTransactionManager> list = new ArrayList<PlatformTransactionManager>();
-        if (txCacheMap == null || txCacheMap.isEmpty()) {
-            return list;
+        DataSourceRegistry snapshot = registry.get();
+        List<PlatformTransactionManager> list = new ArrayList<PlatformTransactionManager>(snapshot.size());
+        for (int slot = 0; slot < snapshot.size(); slot++) {
+            list.add(snapshot.getTransactionManager(slot));
         }
-        for (String key : txCacheMap.keySet()) {
-            Object obj = txCacheMap.get(key);
-            if (obj instanceof List) {
-                list.addAll((List<PlatformTransactionManager>) obj);
-            } else if (obj instanceof PlatformTransactionManager) {
-                list.add((PlatformTransactionManager) obj);
+        return list;
+    }
+    /**
+     * 获取异步事务执行器,未设置时创建默认的有界线程池.
+     * @return 执行器
+     */
+    public Executor getAsyncExecutor() {
+        Executor executor = asyncExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = asyncExecutor;
+                if (executor == null) {
+                    executor = createDefaultAsyncExecutor();
+                    asyncExecutor = executor;
+                }
             }
         }
-        return list;
+        return executor;
+    }
+    /**
+     * 预热数据源,启动时调用,返回结果全部成功后再对外提供服务.
+     *
+     * <pre>
+     * 每个key一个预热线程,不占用异步执行器(预热以等待连接为主,不受执行器线程数限制): 构建sqlSessionTemplate(解析mybatis配置,创建工厂并放入缓存),
+     * 同时从主库及其从库各取connectionsPerKey个连接并校验,使连接池预先建立连接,之后全部归还.
+     * 超过时间预算仍未完成的key记为{@link TimeoutException}并中断其预热线程,不影响已完成的key.
+     * </pre>
+     * @param orignalSqlSessionFactory 原始的SqlSessionFactoryBean,为null时只预热连接
+     * @param keys 数据源key,为null时预热全部数据源
+     * @param connectionsPerKey 每个数据源预先建立的连接数
+     * @param timeout 时间预算
+     * @param unit 时间单位
+     * @return 预热结果
+     */
+    public WarmUpReport warmUp(final SqlSessionFactoryBean orignalSqlSessionFactory, Collection<String> keys, final int connectionsPerKey, long timeout, TimeUnit unit) {
+        long startNanos = System.nanoTime();
+        final long deadlineNanos = startNanos + unit.toNanos(timeout);
+        final DataSourceRegistry snapshot = registry.get();
+        Collection<String> warmKeys = keys == null ? Arrays.asList(snapshot.getKeys()) : keys;
+        Map<String, FutureTask<Object>> tasks = new LinkedHashMap<String, FutureTask<Object>>(warmKeys.size() * 2);
+        Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+        for (final String key : warmKeys) {
+            final int slot = snapshot.slotOf(key);
+            if (slot < 0) {
+                failures.put(key, new IllegalArgumentException("该key所在的数据源不存在:" + key));
+                continue;
+            }
+            tasks.put(key, new FutureTask<Object>(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    if (orignalSqlSessionFactory != null) {
+                        genSqlSessionTemplate(orignalSqlSessionFactory, key);
+                    }
+                    validateConnections(snapshot.getDataSource(slot), connectionsPerKey, deadlineNanos);
+                    ReplicaGroup replicas = snapshot.getReplicas(slot);
+                    for (int i = 0; replicas != null && i < replicas.size(); i++) {
+                        validateConnections(replicas.getDataSource(i), connectionsPerKey, deadlineNanos);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Map.Entry<String, FutureTask<Object>> entry : tasks.entrySet()) {
+            Thread thread = new Thread(entry.getValue(), "chained-tx-warm-up-" + entry.getKey());
+            thread.setDaemon(true);
+            thread.start();
+        }
+        List<String> warmedKeys = new ArrayList<String>(tasks.size());
+        boolean interrupted = false;
+        for (Map.Entry<String, FutureTask<Object>> entry : tasks.entrySet()) {
+            FutureTask<Object> task = entry.getValue();
+            try {
+                task.get(Math.max(deadlineNanos - System.nanoTime(), 0L), TimeUnit.NANOSECONDS);
+                warmedKeys.add(entry.getKey());
+            } catch (ExecutionException e) {
+                failures.put(entry.getKey(), e.getCause());
+            } catch (TimeoutException e) {
+                task.cancel(true);
+                failures.put(entry.getKey(), new TimeoutException("预热超过时间预算:" + entry.getKey()));
+            } catch (InterruptedException e) {
+                interrupted = true;
+                task.cancel(true);
+                failures.put(entry.getKey(), e);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        WarmUpReport report = new WarmUpReport(warmedKeys, failures, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        if (!report.isReady()) {
+            LOGGER.warn("Warm up incomplete " + report);
+        }
+        return report;
+    }
+    /**
+     * 到了自适应排序周期时按统计重排数据源.
+     */
+    private void reorderIfDue() {
+        DataSourceRegistry current = registry.get();
+        ParticipantOrdering ordering = current.getOptions().getOrdering();
+        if (ordering == null || !ordering.isDue()) {
+            return;
+        }
+        DataSourceRegistry reordered = current.reorder();
+        while (reordered != current && !registry.compareAndSet(current, reordered)) {
+            current = registry.get();
+            reordered = current.reorder();
+        }
+    }
+    /**
+     * 获取数据源注册表版本号,每次添加/移除数据源或修改配置后递增.
+     * @return 版本号
+     */
+    public long getRegistryVersion() {
+        return registry.get().getVersion();
+    }
+    /**
+     * 是否延迟加入事务.
+     * @return boolean
+     */
+    public boolean isLazyEnlistment() {
+        return registry.get().getOptions().isLazyEnlistment();
+    }
+    /**
+     * 获取事务统计.
+     * @return 事务统计
+     */
+    public ChainedTransactionMetrics getMetrics() {
+        return registry.get().getOptions().getMetrics();
     }
     /**
      * 
-     * 添加数据源.
+     * 添加数据源. 已存在的key替换为新数据源,进行中的事务不受影响.
      * @param key key
      * @param ds 数据源
      */
     public void putDataSource(String key, DataSource ds) {
-        if (isBegin) {
-            throw new RuntimeException("事务已经开始，不能添加数据源");
-        }
         if (ds == null || key == null) {
             throw new RuntimeException("key 或 ds 不能为空");
         }
         checkMapKey(key);
-        dataSourceCacheMap.put(key, ds);
-        DataSourceTransactionManager tx = new DataSourceTransactionManager(ds);
-        txCacheMap.put(key, tx);
+        DataSourceRegistry current;
+        do {
+            current = registry.get();
+        } while (!registry.compareAndSet(current, current.put(key, ds)));
+    }
+    /**
+     * 移除数据源. 进行中的事务仍使用开始时的数据源,之后开始的事务不再包含该数据源.
+     * @param key key
+     * @return 被移除的数据源,不存在返回null
+     */
+    public DataSource removeDataSource(String key) {
+        DataSourceRegistry current;
+        DataSource removed;
+        do {
+            current = registry.get();
+            removed = current.getDataSource(key);
+            if (removed == null) {
+                return null;
+            }
+        } while (!registry.compareAndSet(current, current.remove(key)));
+        SqlSessionTemplate cached = sqlSessionTemplateCacheMap.get(key);
+        if (cached != null && isBoundTo(cached, removed, null)) {
+            sqlSessionTemplateCacheMap.remove(key, cached);
+        }
+        templateSourceMap.remove(key);
+        ReplicaGroup replicas = current.getReplicas(current.slotOf(key));
+        for (int i = 0; replicas != null && i < replicas.size(); i++) {
+            replicaTemplateCacheMap.remove(replicas.getDataSource(i));
+        }
+        return removed;
+    }
+    /**
+     * 为key添加从库. 之后开始的只读事务可路由到该从库,进行中的事务不受影响.
+     * @param key 主库key,必须已通过putDataSource添加
+     * @param replica 从库数据源
+     */
+    public void putReplica(String key, DataSource replica) {
+        if (replica == null || key == null) {
+            throw new RuntimeException("key 或 replica 不能为空");
+        }
+        DataSourceRegistry current;
+        do {
+            current = registry.get();
+        } while (!registry.compareAndSet(current, current.putReplica(key, replica)));
+    }
+    /**
+     * 移除key的从库.
+     * @param key 主库key
+     * @param replica 从库数据源
+     * @return 是否移除
+     */
+    public boolean removeReplica(String key, DataSource replica) {
+        DataSourceRegistry current;
+        DataSourceRegistry updated;
+        do {
+            current = registry.get();
+            updated = current.removeReplica(key, replica);
+            if (updated == current) {
+                return false;
+            }
+        } while (!registry.compareAndSet(current, updated));
+        replicaTemplateCacheMap.remove(replica);
+        return true;
+    }
+    /**
+     * 获取key的从库列表.
+     * @param key 主库key
+     * @return 从库,没有返回空列表
+     */
+    public List<DataSource> getReplicas(String key) {
+        DataSourceRegistry snapshot = registry.get();
+        int slot = snapshot.slotOf(key);
+        ReplicaGroup replicas = slot < 0 ? null : snapshot.getReplicas(slot);
+        if (replicas == null) {
+            return Collections.emptyList();
+        }
+        List<DataSource> list = new ArrayList<DataSource>(replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            list.add(replicas.getDataSource(i));
+        }
+        return list;
+    }
+    /**
+     * 当前数据源快照中是否包含key,可用于过滤{@link DatePartitionRouter#range(Date, Date)}的结果.
+     * @param key key
+     * @return boolean
+     */
+    public boolean containsDataSource(String key) {
+        return currentRegistry().slotOf(key) >= 0;
     }
     /**
      * 缓存sqlSessionTemplate.
@@ -269,6 +944,278 @@ public class ChainedTransactionManagerUtil {
             throw new IllegalArgumentException("key 不能为:" + DATASOURCE_LIST + " 或 " + DATASOURCE_TX_LIST);
         }
     }
+    /**
+     * 设置异步事务执行器.
+     * @param asyncExecutor 执行器,如有界线程池或虚拟线程执行器
+     */
+    public void setAsyncExecutor(Executor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+    /**
+     * 设置是否延迟加入事务.
+     * @param lazyEnlistment true 数据源在回调中首次使用时才开启事务,提交/回滚只涉及已使用的数据源
+     */
+    public void setLazyEnlistment(boolean lazyEnlistment) {
+        DataSourceRegistry current;
+        do {
+            current = registry.get();
+        } while (!registry.compareAndSet(current, current.configure(current.getOptions().withLazyEnlistment(lazyEnlistment))));
+    }
+    /**
+     * 设置事务统计,按数据源key记录开启/提交/回滚耗时.
+     * @param metrics 事务统计,为null时关闭统计
+     */
+    public void setMetrics(ChainedTransactionMetrics metrics) {
+        DataSourceRegistry current;
+        do {
+            current = registry.get();
+        } while (!registry.compareAndSet(current, current.configure(current.getOptions().withMetrics(metrics))));
+    }
+    /**
+     * 获取查询结果缓存.
+     * @return 缓存
+     */
+    public ShardResultCache getResultCache() {
+        return resultCache.get();
+    }
+    /**
+     * 设置查询结果缓存. 设置后打开的分片会话记录写操作,链式事务提交后使对应分片命名空间的缓存失效.
+     * @param cache 缓存,为null时关闭
+     */
+    public void setResultCache(ShardResultCache cache) {
+        resultCache.set(cache);
+    }
+    /**
+     * 获取生成sqlSessionTemplate的执行器类型.
+     * @return 执行器类型,为null时使用mybatis配置的默认值
+     */
+    public ExecutorType getExecutorType() {
+        return registry.get().getOptions().getExecutorType();
+    }
+    /**
+     * 设置生成sqlSessionTemplate的执行器类型. 为BATCH时语句按分片累积,在{@link #flushStatements()}或提交前并行刷新.
+     * 修改后已缓存的分片sqlSessionTemplate失效并按新类型重新生成.
+     * @param executorType 执行器类型,为null时使用mybatis配置的默认值
+     */
+    public void setExecutorType(ExecutorType executorType) {
+        DataSourceRegistry current;
+        do {
+            current = registry.get();
+        } while (!registry.compareAndSet(current, current.configure(current.getOptions().withExecutorType(executorType))));
+        for (Map.Entry<String, SqlSessionTemplate> entry : sqlSessionTemplateCacheMap.snapshot().entrySet()) {
+            if (entry.getValue().getSqlSessionFactory() instanceof ShardSqlSessionFactory && entry.getValue().getExecutorType() != executorType) {
+                sqlSessionTemplateCacheMap.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+    /**
+     * 获取并行回滚执行器.
+     * @return 执行器
+     */
+    public Executor getRollbackExecutor() {
+        return registry.get().getOptions().getRollbackExecutor();
+    }
+    /**
+     * 设置并行回滚执行器. 设置后回滚时先在执行器上并行回滚各数据源的连接,尽快释放健康分片上的行锁.
+     * @param rollbackExecutor 执行器,为null时按倒序逐个回滚
+     */
+    public void setRollbackExecutor(Executor rollbackExecutor) {
+        DataSourceRegistry current;
+        do {
+            current = registry.get();
+        } while (!registry.compareAndSet(current, current.configure(current.getOptions().withRollbackExecutor(rollbackExecutor))));
+    }
+    /**
+     * 获取数据源key的当前顺序,即开启事务的顺序;提交按倒序进行,最后一个最先提交.
+     * @return key
+     */
+    public List<String> getParticipantOrder() {
+        return Arrays.asList(registry.get().getKeys());
+    }
+    /**
+     * 设置自适应参与者排序. 按数据源key统计提交失败率与耗时,每个周期把风险最高的数据源排到最后(最先提交),
+     * 它提交失败时其余数据源都能回滚,减少部分提交(STATE_MIXED)与浪费的提交. 延迟加入事务时不起作用.
+     * @param interval 排序周期,0为关闭,关闭后保持当前顺序
+     * @param unit 时间单位
+     */
+    public void setAdaptiveOrdering(long interval, TimeUnit unit) {
+        long intervalNanos = unit.toNanos(interval);
+        DataSourceRegistry current;
+        do {
+            current = registry.get();
+        } while (!registry.compareAndSet(current, current.configure(current.getOptions().withOrdering(ParticipantOrdering.withInterval(current.getOptions().getOrdering(), intervalNanos)))));
+    }
+    /**
+     * 固定数据源在链上的位置,优先于自适应排序.
+     * @param key key
+     * @param position 槽位,0为最先开启(最后提交),负数从末尾数起,-1为最后开启(最先提交)
+     */
+    public void pinParticipant(String key, int position) {
+        if (key == null) {
+            throw new RuntimeException("key 不能为空");
+        }
+        DataSourceRegistry current;
+        do {
+            current = registry.get();
+        } while (!registry.compareAndSet(current, current.configure(current.getOptions().withOrdering(ParticipantOrdering.withPin(current.getOptions().getOrdering(), key, position)))));
+    }
+    /**
+     * 取消固定数据源的位置.
+     * @param key key
+     */
+    public void unpinParticipant(String key) {
+        DataSourceRegistry current;
+        do {
+            current = registry.get();
+            ParticipantOrdering ordering = current.getOptions().getOrdering();
+            if (ordering == null || !ordering.getPins().containsKey(key)) {
+                return;
+            }
+        } while (!registry.compareAndSet(current, current.configure(current.getOptions().withOrdering(ParticipantOrdering.withPin(current.getOptions().getOrdering(), key, null)))));
+    }
+    /**
+     * 获取数据源的熔断器状态.
+     * @param key key
+     * @return 状态,未设置熔断器时为{@link CircuitState#CLOSED}
+     */
+    public CircuitState getCircuitState(String key) {
+        CircuitBreakers breakers = registry.get().getOptions().getCircuitBreakers();
+        return breakers == null ? CircuitState.CLOSED : breakers.getState(key);
+    }
+    /**
+     * 设置按数据源的熔断器. 某个数据源连续开启/提交失败达到阈值后,需要它的事务在开启前立即抛出CannotCreateTransactionException,
+     * 不再阻塞到获取连接超时;熔断时间过后放行一个事务探测恢复. 重新设置时所有数据源的状态重置为关闭.
+     * @param failureThreshold 连续失败次数,0为关闭熔断
+     * @param openDuration 熔断时间
+     * @param unit 时间单位
+     */
+    public void setCircuitBreaker(int failureThreshold, long openDuration, TimeUnit unit) {
+        CircuitBreakers breakers = failureThreshold <= 0 ? null : new CircuitBreakers(failureThreshold, unit.toNanos(openDuration));
+        DataSourceRegistry current;
+        do {
+            current = registry.get();
+        } while (!registry.compareAndSet(current, current.configure(current.getOptions().withCircuitBreakers(breakers))));
+    }
+    /**
+     * 设置分片sqlSessionTemplate缓存的容量上限与空闲淘汰时间,主库与从库的模板分别计算.
+     * 超过容量时淘汰最久未访问的模板,空闲超过idleTime的模板定期淘汰;被淘汰的key下次访问时用原来的工厂重新生成.
+     * 进行中的链式事务使用的模板在事务结束前不会被淘汰,通过{@link #putSqlSessionTemplate(String, SqlSessionTemplate)}放入的模板不淘汰.
+     * @param maxSize 容量上限,不大于0为不限
+     * @param idleTime 空闲淘汰时间,0为不淘汰
+     * @param unit 时间单位
+     * @param listener 淘汰监听器,可为null,可用于收缩被淘汰数据源的连接池
+     */
+    public void setTemplateCacheLimits(int maxSize, long idleTime, TimeUnit unit, TemplateEvictionListener listener) {
+        int limit = maxSize <= 0 ? Integer.MAX_VALUE : maxSize;
+        long idleNanos = Math.max(unit.toNanos(idleTime), 0L);
+        sqlSessionTemplateCacheMap.configure(limit, idleNanos, listener);
+        replicaTemplateCacheMap.configure(limit, idleNanos, listener);
+    }
+    /**
+     * 获取缓存的sqlSessionTemplate数量,包括从库.
+     * @return 数量
+     */
+    public int getTemplateCacheSize() {
+        return sqlSessionTemplateCacheMap.size() + replicaTemplateCacheMap.size();
+    }
+    /**
+     * 获取提交日志.
+     * @return 提交日志
+     */
+    public CommitJournal getCommitJournal() {
+        return registry.get().getOptions().getCommitJournal();
+    }
+    /**
+     * 设置提交日志. 设置后多个数据源的事务提交时记录加入顺序与每个数据源的提交/回滚结果,参与者以数据源key记录.
+     * 启动时先调用{@link CommitJournal#recover(CommitJournal.Compensator)}处理上次未正常结束的事务.
+     * @param commitJournal 提交日志,为null时不记录
+     */
+    public void setCommitJournal(CommitJournal commitJournal) {
+        DataSourceRegistry current;
+        do {
+            current = registry.get();
+        } while (!registry.compareAndSet(current, current.configure(current.getOptions().withCommitJournal(commitJournal))));
+    }
+    /**
+     * 获取重试策略.
+     * @return 重试策略
+     */
+    public TransactionRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+    /**
+     * 设置重试策略. 设置后事务因死锁或锁等待超时回滚时,按策略退避后重新执行整个回调,回调必须可以重复执行.
+     * 有截止时间时所有重试共用同一个截止时间.
+     * @param retryPolicy 重试策略,为null时不重试
+     */
+    public void setRetryPolicy(TransactionRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+    /**
+     * 获取只读事务选择从库的方式.
+     * @return 选择方式
+     */
+    public ReplicaBalancing getReplicaBalancing() {
+        return registry.get().getOptions().getReplicaBalancing();
+    }
+    /**
+     * 设置只读事务选择从库的方式.
+     * @param replicaBalancing 选择方式
+     */
+    public void setReplicaBalancing(ReplicaBalancing replicaBalancing) {
+        if (replicaBalancing == null) {
+            throw new IllegalArgumentException("replicaBalancing 不能为空");
+        }
+        DataSourceRegistry current;
+        do {
+            current = registry.get();
+        } while (!registry.compareAndSet(current, current.configure(current.getOptions().withReplicaBalancing(replicaBalancing))));
+    }
+    /**
+     * 在当前线程的链式事务上创建回滚点,只读事务不创建.
+     * @return 回滚点
+     */
+    Object createSavepoint() {
+        TransactionHolder holder = currentHolder();
+        return holder.readOnly ? READ_ONLY_SAVEPOINT : holder.status.createSavepoint();
+    }
+    /**
+     * 回滚到当前线程链式事务的回滚点.
+     * @param savepoint 回滚点
+     */
+    void rollbackToSavepoint(Object savepoint) {
+        if (savepoint != READ_ONLY_SAVEPOINT) {
+            currentHolder().status.rollbackToSavepoint(savepoint);
+        }
+    }
+    /**
+     * 释放当前线程链式事务的回滚点.
+     * @param savepoint 回滚点
+     */
+    void releaseSavepoint(Object savepoint) {
+        if (savepoint != READ_ONLY_SAVEPOINT) {
+            currentHolder().status.releaseSavepoint(savepoint);
+        }
+    }
+    /**
+     * 当前线程的链式事务是否使用批量执行器.
+     * @return 读写事务且事务快照的执行器类型为BATCH时为true
+     */
+    boolean isBatchTransaction() {
+        TransactionHolder holder = currentHolder();
+        return !holder.readOnly && holder.registry.getOptions().getExecutorType() == ExecutorType.BATCH;
+    }
+    /**
+     * 获取当前线程的链式事务.
+     * @return 事务
+     */
+    private TransactionHolder currentHolder() {
+        TransactionHolder holder = currentTransaction.get();
+        if (holder == null) {
+            throw new IllegalStateException("当前线程没有进行中的链式事务");
+        }
+        return holder;
+    }
     /**
      * 检测MAP key.
      * @param key .
@@ -278,17 +1225,320 @@ public class ChainedTransactionManagerUtil {
             throw new IllegalArgumentException("key 不能为:" + DATASOURCE_LIST + " 或 " + DATASOURCE_TX_LIST);
         }
     }
+    /**
+     * 在异步执行线程上执行事务. 执行前线程不能带有事务同步,执行后清理残留的线程绑定资源.
+     * @param <T> t 返回结果
+     * @param callBack 回调函数
+     * @return T t
+     */
+    private <T> T doTransactionOnWorker(TransactionCallBack<T> callBack) {
+        if (TransactionSynchronizationManager.isSynchronizationActive() || currentTransaction.get() != null) {
+            throw new IllegalStateException("异步事务的执行线程已绑定事务,执行器不能在调用线程上运行任务");
+        }
+        try {
+            return doTransaction(callBack);
+        } finally {
+            if (!TransactionSynchronizationManager.getResourceMap().isEmpty()) {
+                // getResourceMap()是线程绑定map的只读视图,先复制key再解绑
+                for (Object key : new ArrayList<Object>(TransactionSynchronizationManager.getResourceMap().keySet())) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(key);
+                }
+            }
+            if (TransactionSynchronizationManager.isSynchronizationActive()) {
+                TransactionSynchronizationManager.clear();
+            }
+        }
+    }
+    /**
+     * 同时取出多个连接并校验,之后全部归还,使连接池预先建立连接.
+     * @param ds 数据源
+     * @param count 连接数
+     * @param deadlineNanos 截止时间({@link System#nanoTime()})
+     * @throws SQLException 取连接失败或连接无效
+     */
+    private static void validateConnections(DataSource ds, int count, long deadlineNanos) throws SQLException {
+        List<Connection> connections = new ArrayList<Connection>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                Connection connection = ds.getConnection();
+                connections.add(connection);
+                int seconds = (int) Math.max(1L, TimeUnit.NANOSECONDS.toSeconds(deadlineNanos - System.nanoTime()));
+                if (!connection.isValid(seconds)) {
+                    throw new SQLException("连接校验失败:" + ds);
+                }
+            }
+        } finally {
+            for (Connection connection : connections) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    LOGGER.warn("Connection close exception " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+    /**
+     * 创建默认的异步事务执行器: 线程数为CPU数的两倍,队列有界,队列满时拒绝.
+     * @return 执行器
+     */
+    private static Executor createDefaultAsyncExecutor() {
+        int threads = Runtime.getRuntime().availableProcessors() * 2;
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(threads * 64), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "chained-tx-async-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+    /**
+     * 并行刷新链式事务中各分片的批量语句.
+     * @param holder 链式事务
+     * @return key与批量结果
+     */
+    private Map<String, List<BatchResult>> flushStatements(TransactionHolder holder) {
+        DataSourceRegistry snapshot = holder.registry;
+        Map<String, FutureTask<List<BatchResult>>> tasks = null;
+        for (int slot = 0; slot < snapshot.size(); slot++) {
+            final String key = snapshot.getKey(slot);
+            SqlSessionTemplate sqlSessionTemplate = getCachedSqlSessionTemplate(key, snapshot.getDataSource(slot), null);
+            if (sqlSessionTemplate == null) {
+                continue;
+            }
+            Object resource = TransactionSynchronizationManager.getResource(sqlSessionTemplate.getSqlSessionFactory());
+            if (!(resource instanceof SqlSessionHolder) || ((SqlSessionHolder) resource).getExecutorType() != ExecutorType.BATCH) {
+                continue;
+            }
+            final SqlSessionHolder sqlSessionHolder = (SqlSessionHolder) resource;
+            if (tasks == null) {
+                tasks = new LinkedHashMap<String, FutureTask<List<BatchResult>>>();
+            }
+            tasks.put(key, new FutureTask<List<BatchResult>>(new ParticipantTask<List<BatchResult>>(snapshot.getDataSource(slot)) {
+                @Override
+                protected List<BatchResult> callInParticipant() {
+                    try {
+                        return sqlSessionHolder.getSqlSession().flushStatements();
+                    } catch (PersistenceException e) {
+                        RuntimeException translated = sqlSessionHolder.getPersistenceExceptionTranslator() == null ? null : sqlSessionHolder.getPersistenceExceptionTranslator()
+                                .translateExceptionIfPossible(e);
+                        throw translated != null ? translated : e;
+                    }
+                }
+            }));
+        }
+        if (tasks == null) {
+            return Collections.emptyMap();
+        }
+        return invokeAll(tasks, "flushStatements");
+    }
+    /**
+     * 在异步执行器上并行执行任务并收集结果. 尚未被执行器取走的任务由调用线程执行,因此执行器繁忙也不会死锁.
+     * @param <T> t 返回结果
+     * @param tasks key与任务
+     * @param description 异常描述
+     * @return key与结果,按tasks顺序排列
+     */
+    private <T> Map<String, T> invokeAll(Map<String, FutureTask<T>> tasks, String description) {
+        Executor executor = getAsyncExecutor();
+        if (tasks.size() > 1) {
+            for (FutureTask<T> task : tasks.values()) {
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    // 由调用线程执行
+                }
+            }
+        }
+        // 尚未被执行器取走的任务直接在调用线程执行,已开始或已结束的任务run()立即返回
+        for (FutureTask<T> task : tasks.values()) {
+            task.run();
+        }
+        Map<String, T> results = new LinkedHashMap<String, T>(tasks.size() * 2);
+        Throwable failure = null;
+        boolean interrupted = false;
+        for (Map.Entry<String, FutureTask<T>> entry : tasks.entrySet()) {
+            while (true) {
+                try {
+                    results.put(entry.getKey(), entry.getValue().get());
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new UndeclaredThrowableException(failure, description + " threw undeclared checked exception");
+        }
+        return results;
+    }
+    /**
+     * 当前线程可见的数据源快照,事务中为事务开始时的快照.
+     * @return 快照
+     */
+    private DataSourceRegistry currentRegistry() {
+        TransactionHolder holder = currentTransaction.get();
+        return holder == null ? registry.get() : holder.registry;
+    }
+    /**
+     * 获取绑定在指定数据源(主库或从库)上的缓存sqlSessionTemplate.
+     * @param key key
+     * @param ds 数据源
+     * @param executorType 执行器类型,为null时不检查
+     * @return sqlSessionTemplate,不存在或数据源已变化返回null
+     */
+    private SqlSessionTemplate getCachedSqlSessionTemplate(String key, DataSource ds, ExecutorType executorType) {
+        SqlSessionTemplate cached = getCachedSqlSessionTemplate(sqlSessionTemplateCacheMap, key, ds, executorType);
+        return cached != null ? cached : getCachedSqlSessionTemplate(replicaTemplateCacheMap, ds, ds, executorType);
+    }
+    /**
+     * 从缓存获取绑定在指定数据源上的sqlSessionTemplate,事务中同时固定到事务结束.
+     * @param <K> key类型
+     * @param cache 缓存
+     * @param key key
+     * @param ds 数据源
+     * @param executorType 执行器类型,为null时不检查
+     * @return sqlSessionTemplate,不存在,数据源已变化或已被淘汰返回null
+     */
+    private <K> SqlSessionTemplate getCachedSqlSessionTemplate(TemplateCache<K> cache, K key, DataSource ds, ExecutorType executorType) {
+        TemplateCache.Entry entry = cache.getEntry(key);
+        if (entry == null || !isBoundTo(entry.getTemplate(), ds, executorType)) {
+            return null;
+        }
+        TransactionHolder holder = currentTransaction.get();
+        if (holder != null && !holder.pin(cache, entry)) {
+            return null;
+        }
+        return entry.getTemplate();
+    }
+    /**
+     * sqlSessionTemplate是否绑定在指定数据源上. 通过putSqlSessionTemplate放入的模板无法判断数据源,视为绑定.
+     * @param sqlSessionTemplate sqlSessionTemplate
+     * @param ds 数据源
+     * @param executorType 执行器类型,为null时不检查
+     * @return boolean
+     */
+    private boolean isBoundTo(SqlSessionTemplate sqlSessionTemplate, DataSource ds, ExecutorType executorType) {
+        if (executorType != null && sqlSessionTemplate.getExecutorType() != executorType) {
+            return false;
+        }
+        if (sqlSessionTemplate.getSqlSessionFactory() instanceof ShardSqlSessionFactory) {
+            return ((ShardSqlSessionFactory) sqlSessionTemplate.getSqlSessionFactory()).getDataSource() == ds;
+        }
+        return true;
+    }
+    /**
+     * 获取原始工厂对应的已解析配置,并发首次调用时只解析一次.
+     * @param orignalSqlSessionFactory 原始的SqlSessionFactoryBean
+     * @param ds 解析时使用的数据源
+     * @return 配置
+     * @throws Exception 异常
+     */
+    private Configuration getConfiguration(final SqlSessionFactoryBean orignalSqlSessionFactory, final DataSource ds) throws Exception {
+        FutureTask<Configuration> task = configurationCacheMap.get(orignalSqlSessionFactory);
+        if (task == null) {
+            FutureTask<Configuration> newTask = new FutureTask<Configuration>(new Callable<Configuration>() {
+                @Override
+                public Configuration call() throws Exception {
+                    return parseConfiguration(orignalSqlSessionFactory, ds);
+                }
+            });
+            task = configurationCacheMap.putIfAbsent(orignalSqlSessionFactory, newTask);
+            if (task == null) {
+                task = newTask;
+                task.run();
+            }
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            configurationCacheMap.remove(orignalSqlSessionFactory, task);
+            throw e;
+        }
+    }
+    /**
+     * 解析原始工厂的mybatis配置. 反射获取configLocation,使用独立的SqlSessionFactoryBean构建.
+     * 配置由所有分片共享,mapper声明的二级缓存(CacheKey不含数据源)会在分片间串数据,
+     * 因此关闭二级缓存;需要缓存查询结果时使用按分片隔离的{@link #setResultCache(ShardResultCache)}.
+     * @param orignalSqlSessionFactory 原始的SqlSessionFactoryBean
+     * @param ds 数据源
+     * @return 配置
+     * @throws Exception 异常
+     */
+    private Configuration parseConfiguration(SqlSessionFactoryBean orignalSqlSessionFactory, DataSource ds) throws Exception {
+        Field field = orignalSqlSessionFactory.getClass().getDeclaredField("configLocation");
+        field.setAccessible(true);
+        Object configLocation = field.get(orignalSqlSessionFactory);
+        SqlSessionFactoryBean factory = new SqlSessionFactoryBean();
+        factory.setConfigLocation((org.springframework.core.io.Resource) configLocation);
+        factory.setDatabaseIdProvider(new DatabaseIdProvider() {
+            @Override
+            public void setProperties(Properties arg0) {
+            }
+            @Override
+            public String getDatabaseId(DataSource arg0) throws SQLException {
+                return null;
+            }
+        });
+        factory.setDataSource(ds);
+        factory.afterPropertiesSet();
+        Configuration configuration = factory.getObject().getConfiguration();
+        configuration.setCacheEnabled(false);
+        configuration.addInterceptor(new ChainDeadline.StatementInterceptor());
+        return configuration;
+    }
+    /**
+     * 延迟加入模式下,将槽位对应的数据源加入当前线程的链式事务.
+     * @param slot 事务快照中的槽位
+     */
+    private void enlist(int slot) {
+        TransactionHolder holder = currentTransaction.get();
+        if (holder == null || !holder.registry.getOptions().isLazyEnlistment()) {
+            return;
+        }
+        ChainedTransactionManager chainedTx = holder.registry.getChainedTransactionManager();
+        CircuitBreakers breakers = holder.registry.getOptions().getCircuitBreakers();
+        if (breakers != null && !holder.registry.isReplicaSlot(slot) && !chainedTx.isEnlisted(holder.status, slot)) {
+            breakers.acquire(holder.registry.getKey(slot));
+        }
+        chainedTx.enlist(holder.status, slot);
+    }
     /**
      * 异常回滚.
      * @param chainedTx 事务管理器
      * @param status 事务状态
+     * @param deadline 截止时间,可为null
      * @param ex 异常
      * @throws TransactionException 异常
      */
-    private void rollbackOnException(PlatformTransactionManager chainedTx, TransactionStatus status, Throwable ex) throws TransactionException {
+    private void rollbackOnException(PlatformTransactionManager chainedTx, TransactionStatus status, ChainDeadline deadline, Throwable ex) throws TransactionException {
+        if (status.isCompleted()) {
+            // 提交失败时链式事务已自行完成提交/回滚
+            return;
+        }
         try {
             status.setRollbackOnly();
-            chainedTx.rollback(status);
+            if (deadline != null && deadline.isExpired() && chainedTx instanceof ChainedTransactionManager) {
+                Executor executor = getRollbackExecutor();
+                ((ChainedTransactionManager) chainedTx).rollback(status, executor != null ? executor : getAsyncExecutor());
+            } else {
+                chainedTx.rollback(status);
+            }
         } catch (TransactionSystemException ex2) {
             ex2.initApplicationException(ex);
             throw ex2;
@@ -0,0 +1,234 @@
+/*
+ * 文件名：CircuitBreakers.java
+ * 描述： CircuitBreakers.java
+ * 修改人：zhengmo
+ * 修改时间：2015年11月18日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.transaction.CannotCreateTransactionException;
+
+import com.zhengmo.data.transaction.ChainedTransactionListener;
+
+/**
+ * 按数据源key的熔断器.
+ *
+ * <pre>
+ * 由各参与者开启与提交的结果驱动: 连续失败达到阈值后打开,需要该数据源的事务在开启前直接抛出{@link CannotCreateTransactionException},
+ * 不再等待获取连接超时. 熔断时间过后放行一个探测事务(半开),探测成功关闭,失败重新打开;探测在熔断时间内没有结果时再放行一个.
+ * 非延迟加入的事务需要全部数据源,任一打开即失败;延迟加入时只在使用到打开的数据源时失败.
+ * 只读事务中由从库承担的槽位不检查也不统计.
+ * </pre>
+ * @author zhengmo
+ */
+final class CircuitBreakers {
+    /**
+     * 一个数据源的熔断器.
+     * @author zhengmo
+     */
+    static final class Breaker {
+        /**
+         * 连续失败次数.
+         */
+        private final AtomicInteger failures = new AtomicInteger();
+        /**
+         * 打开到的时间({@link System#nanoTime()}),关闭为0.
+         */
+        private final AtomicLong openUntil = new AtomicLong();
+        /**
+         * 是否有探测事务进行中.
+         */
+        private volatile boolean probing;
+        /**
+         * 所属熔断器组.
+         */
+        private final CircuitBreakers owner;
+        /**
+         * 构造函数.
+         * @param owner 所属熔断器组
+         */
+        Breaker(CircuitBreakers owner) {
+            this.owner = owner;
+        }
+        /**
+         * 是否放行. 打开且熔断时间已过时只有一个调用者作为探测放行.
+         * @return boolean
+         */
+        boolean tryAcquire() {
+            long until = openUntil.get();
+            if (until == 0) {
+                return true;
+            }
+            long now = System.nanoTime();
+            if (now - until >= 0 && openUntil.compareAndSet(until, Math.max(now + owner.openNanos, 1L))) {
+                probing = true;
+                return true;
+            }
+            return false;
+        }
+        /**
+         * 记录一次开启或提交的结果.
+         * @param success 是否成功
+         */
+        void record(boolean success) {
+            if (success) {
+                failures.set(0);
+                if (openUntil.get() != 0) {
+                    openUntil.set(0);
+                    probing = false;
+                }
+                return;
+            }
+            if (openUntil.get() != 0) {
+                openUntil.set(Math.max(System.nanoTime() + owner.openNanos, 1L));
+                probing = false;
+            } else if (failures.incrementAndGet() >= owner.failureThreshold) {
+                failures.set(0);
+                openUntil.compareAndSet(0, Math.max(System.nanoTime() + owner.openNanos, 1L));
+            }
+        }
+        /**
+         * @return 状态
+         */
+        CircuitState getState() {
+            if (openUntil.get() == 0) {
+                return CircuitState.CLOSED;
+            }
+            return probing ? CircuitState.HALF_OPEN : CircuitState.OPEN;
+        }
+    }
+    /**
+     * 按槽位记录结果的监听器,所有回调转发给原监听器.
+     * @author zhengmo
+     */
+    static final class BreakerListener implements ChainedTransactionListener {
+        /**
+         * 原监听器,可为null.
+         */
+        private final ChainedTransactionListener delegate;
+        /**
+         * 按槽位排列的熔断器,不统计的槽位为null.
+         */
+        private final Breaker[] breakers;
+        /**
+         * 构造函数.
+         * @param delegate 原监听器
+         * @param breakers 按槽位排列的熔断器
+         */
+        BreakerListener(ChainedTransactionListener delegate, Breaker[] breakers) {
+            this.delegate = delegate;
+            this.breakers = breakers;
+        }
+        @Override
+        public void afterBegin(int slot, long nanos, boolean success) {
+            if (breakers[slot] != null) {
+                breakers[slot].record(success);
+            }
+            if (delegate != null) {
+                delegate.afterBegin(slot, nanos, success);
+            }
+        }
+        @Override
+        public void afterCommit(int slot, long nanos, boolean success) {
+            if (breakers[slot] != null) {
+                breakers[slot].record(success);
+            }
+            if (delegate != null) {
+                delegate.afterCommit(slot, nanos, success);
+            }
+        }
+        @Override
+        public void afterRollback(int slot, long nanos, boolean success) {
+            if (delegate != null) {
+                delegate.afterRollback(slot, nanos, success);
+            }
+        }
+        @Override
+        public void afterCompletion(long nanos, int state, int rollbacksAfterCommitFailure) {
+            if (delegate != null) {
+                delegate.afterCompletion(nanos, state, rollbacksAfterCommitFailure);
+            }
+        }
+    }
+    /**
+     * @打开所需的连续失败次数
+     */
+    private final int failureThreshold;
+    /**
+     * @熔断时间,纳秒
+     */
+    private final long openNanos;
+    /**
+     * @按key的熔断器
+     */
+    private final ConcurrentMap<String, Breaker> breakers = new ConcurrentHashMap<String, Breaker>();
+    /**
+     * 构造函数.
+     * @param failureThreshold 打开所需的连续失败次数
+     * @param openNanos 熔断时间,纳秒
+     */
+    CircuitBreakers(int failureThreshold, long openNanos) {
+        if (failureThreshold < 1 || openNanos <= 0) {
+            throw new IllegalArgumentException("failureThreshold 与 openDuration 必须大于0");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openNanos;
+    }
+    /**
+     * 包装监听器,记录各槽位的开启与提交结果.
+     * @param delegate 原监听器,可为null
+     * @param keys 按槽位排列的数据源key
+     * @param chosen 只读视图各槽位选中的从库,为null或元素为null的槽位使用主库
+     * @return 监听器
+     */
+    ChainedTransactionListener listener(ChainedTransactionListener delegate, String[] keys, ReplicaGroup.Replica[] chosen) {
+        Breaker[] slotBreakers = new Breaker[keys.length];
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (chosen == null || chosen[slot] == null) {
+                slotBreakers[slot] = breakerOf(keys[slot]);
+            }
+        }
+        return new BreakerListener(delegate, slotBreakers);
+    }
+    /**
+     * 检查数据源是否可以开启事务.
+     * @param key 数据源key
+     * @throws CannotCreateTransactionException 熔断器打开
+     */
+    void acquire(String key) throws CannotCreateTransactionException {
+        if (!breakerOf(key).tryAcquire()) {
+            throw new CannotCreateTransactionException("数据源熔断中,事务快速失败:" + key);
+        }
+    }
+    /**
+     * 获取状态.
+     * @param key 数据源key
+     * @return 状态
+     */
+    CircuitState getState(String key) {
+        Breaker breaker = breakers.get(key);
+        return breaker == null ? CircuitState.CLOSED : breaker.getState();
+    }
+    /**
+     * 获取key的熔断器.
+     * @param key 数据源key
+     * @return 熔断器
+     */
+    private Breaker breakerOf(String key) {
+        Breaker breaker = breakers.get(key);
+        if (breaker == null) {
+            Breaker created = new Breaker(this);
+            breaker = breakers.putIfAbsent(key, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+}
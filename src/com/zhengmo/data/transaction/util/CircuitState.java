@@ -0,0 +1,27 @@
+/*
+ * 文件名：CircuitState.java
+ * 描述： CircuitState.java
+ * 修改人：zhengmo
+ * 修改时间：2015年11月18日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.util;
+
+/**
+ * 数据源熔断器状态.
+ * @author zhengmo
+ */
+public enum CircuitState {
+    /**
+     * 关闭,正常开启事务.
+     */
+    CLOSED,
+    /**
+     * 打开,需要该数据源的事务立即失败;熔断时间过后下一个事务作为探测放行.
+     */
+    OPEN,
+    /**
+     * 半开,探测事务进行中,其余事务仍立即失败;探测成功后关闭,失败后重新打开.
+     */
+    HALF_OPEN
+}
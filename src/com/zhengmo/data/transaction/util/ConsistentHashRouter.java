@@ -0,0 +1,328 @@
+/*
+ * 文件名：ConsistentHashRouter.java
+ * 描述： ConsistentHashRouter.java
+ * 修改人：zhengmo
+ * 修改时间：2015年11月5日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 一致性哈希路由.
+ *
+ * <pre>
+ * 节点即{@link ChainedTransactionManagerUtil#putDataSource(String, javax.sql.DataSource)}的key,每个节点在环上放置若干虚拟节点.
+ * 查找为有序数组上的二分查找,O(log n)且不创建对象;增删节点只有约1/n的实体改变归属.
+ * 迁移模式下同时持有当前环与目标环: 读按当前环路由,写按{@link #routes(String)}同时写入当前节点与目标节点,
+ * 数据迁移完成后{@link #completeMigration()}切换到目标环. 实例线程安全,环写时复制.
+ * ##############使用方法
+ * 1.ConsistentHashRouter router = new ConsistentHashRouter(160, keys);
+ * 2.tx.getSqlSessionTemplate(router.route(entityId));
+ * 3.router.beginMigration(newKeys); 写入 router.routes(entityId); router.completeMigration();
+ * ##############使用方法
+ * </pre>
+ * @author zhengmo
+ */
+public final class ConsistentHashRouter {
+    /**
+     * 不可变的哈希环.
+     * @author zhengmo
+     */
+    private static final class Ring {
+        /**
+         * 节点.
+         */
+        private final Set<String> nodes;
+        /**
+         * 虚拟节点哈希,升序.
+         */
+        private final long[] hashes;
+        /**
+         * 虚拟节点所属节点,与hashes一一对应.
+         */
+        private final String[] owners;
+        /**
+         * 构造函数.
+         * @param nodes 节点
+         * @param virtualNodes 每个节点的虚拟节点数
+         */
+        Ring(Set<String> nodes, int virtualNodes) {
+            this.nodes = Collections.unmodifiableSet(nodes);
+            int size = nodes.size() * virtualNodes;
+            long[] points = new long[size];
+            String[] pointOwners = new String[size];
+            int i = 0;
+            for (String node : nodes) {
+                long nodeHash = hash(node);
+                for (int v = 0; v < virtualNodes; v++) {
+                    points[i] = mix(nodeHash + (v + 1) * 0x9e3779b97f4a7c15L);
+                    pointOwners[i] = node;
+                    i++;
+                }
+            }
+            // 按哈希排序,相同哈希时按节点名排序以保证结果稳定
+            Integer[] order = new Integer[size];
+            for (int j = 0; j < size; j++) {
+                order[j] = j;
+            }
+            final long[] unsorted = points;
+            final String[] unsortedOwners = pointOwners;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    long x = unsorted[a];
+                    long y = unsorted[b];
+                    return x < y ? -1 : x > y ? 1 : unsortedOwners[a].compareTo(unsortedOwners[b]);
+                }
+            });
+            this.hashes = new long[size];
+            this.owners = new String[size];
+            for (int j = 0; j < size; j++) {
+                hashes[j] = points[order[j]];
+                owners[j] = pointOwners[order[j]];
+            }
+        }
+        /**
+         * 哈希值顺时针方向的第一个节点.
+         * @param hash 哈希值
+         * @return 节点,环为空时返回null
+         */
+        String locate(long hash) {
+            if (hashes.length == 0) {
+                return null;
+            }
+            int index = Arrays.binarySearch(hashes, hash);
+            if (index < 0) {
+                index = -index - 1;
+                if (index == hashes.length) {
+                    index = 0;
+                }
+            }
+            return owners[index];
+        }
+    }
+    /**
+     * 路由状态.
+     * @author zhengmo
+     */
+    private static final class State {
+        /**
+         * 当前环.
+         */
+        private final Ring current;
+        /**
+         * 迁移目标环,未迁移时为null.
+         */
+        private final Ring target;
+        /**
+         * 构造函数.
+         * @param current 当前环
+         * @param target 目标环
+         */
+        State(Ring current, Ring target) {
+            this.current = current;
+            this.target = target;
+        }
+    }
+    /**
+     * @每个节点的虚拟节点数
+     */
+    private final int virtualNodes;
+    /**
+     * @路由状态,写时复制
+     */
+    private final AtomicReference<State> state;
+    /**
+     * 构造函数.
+     * @param virtualNodes 每个节点的虚拟节点数,建议100~200
+     * @param nodes 节点,即数据源key
+     */
+    public ConsistentHashRouter(int virtualNodes, Collection<String> nodes) {
+        if (virtualNodes <= 0 || nodes == null) {
+            throw new IllegalArgumentException("virtualNodes 必须大于0且 nodes 不能为空");
+        }
+        this.virtualNodes = virtualNodes;
+        this.state = new AtomicReference<State>(new State(new Ring(new LinkedHashSet<String>(nodes), virtualNodes), null));
+    }
+    /**
+     * 实体所属节点(读写均以此为准).
+     * @param entityId 实体id
+     * @return 节点key,没有节点时返回null
+     */
+    public String route(String entityId) {
+        return state.get().current.locate(hash(entityId));
+    }
+    /**
+     * 实体所属节点(读写均以此为准).
+     * @param entityId 实体id
+     * @return 节点key,没有节点时返回null
+     */
+    public String route(long entityId) {
+        return state.get().current.locate(hash(entityId));
+    }
+    /**
+     * 迁移中实体的目标节点.
+     * @param entityId 实体id
+     * @return 目标节点key,未迁移或归属不变时返回null
+     */
+    public String migrationTarget(String entityId) {
+        State current = state.get();
+        if (current.target == null) {
+            return null;
+        }
+        long hash = hash(entityId);
+        String to = current.target.locate(hash);
+        return to == null || to.equals(current.current.locate(hash)) ? null : to;
+    }
+    /**
+     * 写入时需要路由的节点: 当前节点,迁移中且归属改变时再加上目标节点.
+     * @param entityId 实体id
+     * @return 节点key集合
+     */
+    public List<String> routes(String entityId) {
+        State current = state.get();
+        long hash = hash(entityId);
+        String from = current.current.locate(hash);
+        if (current.target != null) {
+            String to = current.target.locate(hash);
+            if (to != null && !to.equals(from)) {
+                return from == null ? Collections.singletonList(to) : Arrays.asList(from, to);
+            }
+        }
+        return from == null ? Collections.<String>emptyList() : Collections.singletonList(from);
+    }
+    /**
+     * 添加节点,立即生效. 迁移中不能调用.
+     * @param node 节点key
+     */
+    public void addNode(String node) {
+        State current;
+        Set<String> nodes;
+        do {
+            current = stable();
+            nodes = new LinkedHashSet<String>(current.current.nodes);
+            if (!nodes.add(node)) {
+                return;
+            }
+        } while (!state.compareAndSet(current, new State(new Ring(nodes, virtualNodes), null)));
+    }
+    /**
+     * 移除节点,立即生效. 迁移中不能调用.
+     * @param node 节点key
+     */
+    public void removeNode(String node) {
+        State current;
+        Set<String> nodes;
+        do {
+            current = stable();
+            nodes = new LinkedHashSet<String>(current.current.nodes);
+            if (!nodes.remove(node)) {
+                return;
+            }
+        } while (!state.compareAndSet(current, new State(new Ring(nodes, virtualNodes), null)));
+    }
+    /**
+     * 开始迁移到新的节点集合. 之后读仍按当前环,写需按{@link #routes(String)}双写.
+     * @param nodes 迁移后的节点
+     */
+    public void beginMigration(Collection<String> nodes) {
+        Ring target = new Ring(new LinkedHashSet<String>(nodes), virtualNodes);
+        State current;
+        do {
+            current = stable();
+        } while (!state.compareAndSet(current, new State(current.current, target)));
+    }
+    /**
+     * 完成迁移,切换到目标环.
+     */
+    public void completeMigration() {
+        State current;
+        do {
+            current = state.get();
+            if (current.target == null) {
+                throw new IllegalStateException("没有进行中的迁移");
+            }
+        } while (!state.compareAndSet(current, new State(current.target, null)));
+    }
+    /**
+     * 放弃迁移,保留当前环.
+     */
+    public void abortMigration() {
+        State current;
+        do {
+            current = state.get();
+            if (current.target == null) {
+                return;
+            }
+        } while (!state.compareAndSet(current, new State(current.current, null)));
+    }
+    /**
+     * 是否在迁移中.
+     * @return boolean
+     */
+    public boolean isMigrating() {
+        return state.get().target != null;
+    }
+    /**
+     * 当前环的节点.
+     * @return 节点key集合
+     */
+    public Set<String> getNodes() {
+        return state.get().current.nodes;
+    }
+    /**
+     * 未在迁移中的状态.
+     * @return 状态
+     */
+    private State stable() {
+        State current = state.get();
+        if (current.target != null) {
+            throw new IllegalStateException("迁移进行中,请先完成或放弃迁移");
+        }
+        return current;
+    }
+    /**
+     * 字符串的64位哈希(FNV-1a后再混合),不创建对象.
+     * @param value 字符串
+     * @return 哈希值
+     */
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+    /**
+     * 长整型的64位哈希.
+     * @param value 值
+     * @return 哈希值
+     */
+    static long hash(long value) {
+        return mix(value + 0x9e3779b97f4a7c15L);
+    }
+    /**
+     * 64位混合函数(murmur3 fmix64).
+     * @param value 值
+     * @return 混合后的值
+     */
+    private static long mix(long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
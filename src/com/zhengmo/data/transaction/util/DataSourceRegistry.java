@@ -0,0 +1,443 @@
+/*
+ * 文件名：DataSourceRegistry.java
+ * 描述： DataSourceRegistry.java
+ * 修改人：zhengmo
+ * 修改时间：2015年10月29日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.zhengmo.data.transaction.ChainedTransactionManager;
+
+/**
+ * 数据源注册表快照.
+ *
+ * <pre>
+ * 不可变,任何修改都生成新版本(写时复制). 数据源按注册顺序占用槽位,槽位即在链式事务上的下标.
+ * 链式事务管理器在生成快照时构建一次,进行中的事务始终使用开始时的快照.
+ * 只有一个数据源且未延迟加入时,事务直接在其事务管理器上进行,见{@link SingleParticipantTransactionManager}.
+ * 只读事务使用{@link #readView()}返回的视图,有从库的槽位替换为选中的从库. 每种从库组合的视图在首次选中时构建一次并缓存在快照上,
+ * 组合数超过{@link #MAX_READ_VIEWS}时才按事务构建.
+ * </pre>
+ * @author zhengmo
+ */
+final class DataSourceRegistry {
+    /**
+     * @缓存的只读视图数量上限,即各槽位从库数的乘积上限
+     */
+    static final int MAX_READ_VIEWS = 256;
+    /**
+     * @空注册表
+     */
+    static final DataSourceRegistry EMPTY = new DataSourceRegistry(0L, new String[0], new DataSource[0], new PlatformTransactionManager[0], new ReplicaGroup[0], ChainOptions.DEFAULT);
+    /**
+     * @版本号
+     */
+    private final long version;
+    /**
+     * @按槽位排列的key
+     */
+    private final String[] keys;
+    /**
+     * @按槽位排列的数据源
+     */
+    private final DataSource[] dataSources;
+    /**
+     * @按槽位排列的事务管理器
+     */
+    private final PlatformTransactionManager[] transactionManagers;
+    /**
+     * @按槽位排列的从库组,没有从库为null
+     */
+    private final ReplicaGroup[] replicas;
+    /**
+     * @key与槽位
+     */
+    private final Map<String, Integer> slots;
+    /**
+     * @链式事务管理器配置
+     */
+    private final ChainOptions options;
+    /**
+     * @链式事务管理器,没有数据源时为null
+     */
+    private final ChainedTransactionManager chainedTransactionManager;
+    /**
+     * @开启事务使用的事务管理器,单个参与者时为{@link SingleParticipantTransactionManager},否则为链式事务管理器
+     */
+    private final PlatformTransactionManager entryTransactionManager;
+    /**
+     * @只读视图对应的主库快照,非视图为null
+     */
+    private final DataSourceRegistry primary;
+    /**
+     * @按从库组合(各槽位从库下标的混合进制编码)缓存的只读视图,没有从库、组合过多或为视图时为null
+     */
+    private final AtomicReferenceArray<DataSourceRegistry> readViews;
+    /**
+     * 构造函数.
+     * @param version 版本号
+     * @param keys key
+     * @param dataSources 数据源
+     * @param transactionManagers 事务管理器
+     * @param replicas 从库组
+     * @param options 链式事务管理器配置
+     */
+    private DataSourceRegistry(long version, String[] keys, DataSource[] dataSources, PlatformTransactionManager[] transactionManagers, ReplicaGroup[] replicas, ChainOptions options) {
+        this.version = version;
+        this.keys = keys;
+        this.dataSources = dataSources;
+        this.transactionManagers = transactionManagers;
+        this.replicas = replicas;
+        this.options = options;
+        this.primary = null;
+        this.slots = new HashMap<String, Integer>(keys.length * 2);
+        for (int slot = 0; slot < keys.length; slot++) {
+            slots.put(keys[slot], slot);
+        }
+        if (transactionManagers.length == 0) {
+            this.chainedTransactionManager = null;
+        } else {
+            ChainedTransactionManager chainedTx = new ChainedTransactionManager(transactionManagers);
+            options.apply(chainedTx, keys, null);
+            this.chainedTransactionManager = chainedTx;
+        }
+        this.entryTransactionManager = entryOf(chainedTransactionManager, transactionManagers, options);
+        long combinations = 0L;
+        for (ReplicaGroup group : replicas) {
+            if (group != null && combinations <= MAX_READ_VIEWS) {
+                combinations = Math.max(combinations, 1L) * group.size();
+            }
+        }
+        this.readViews = combinations > 0 && combinations <= MAX_READ_VIEWS ? new AtomicReferenceArray<DataSourceRegistry>((int) combinations) : null;
+    }
+    /**
+     * 只读视图构造函数.
+     * @param primary 主库快照
+     * @param chosen 各槽位选中的从库,未使用从库为null
+     */
+    private DataSourceRegistry(DataSourceRegistry primary, ReplicaGroup.Replica[] chosen) {
+        this.version = primary.version;
+        this.keys = primary.keys;
+        this.slots = primary.slots;
+        this.replicas = primary.replicas;
+        this.options = primary.options;
+        this.primary = primary;
+        this.readViews = null;
+        this.dataSources = primary.dataSources.clone();
+        this.transactionManagers = primary.transactionManagers.clone();
+        for (int slot = 0; slot < chosen.length; slot++) {
+            if (chosen[slot] != null) {
+                dataSources[slot] = chosen[slot].getDataSource();
+                transactionManagers[slot] = chosen[slot].getTransactionManager();
+            }
+        }
+        ChainedTransactionManager chainedTx = new ChainedTransactionManager(transactionManagers);
+        options.apply(chainedTx, keys, chosen);
+        chainedTx.setTransactionListener(new ReplicaGroup.LatencyListener(chainedTx.getTransactionListener(), chosen));
+        this.chainedTransactionManager = chainedTx;
+        this.entryTransactionManager = entryOf(chainedTx, transactionManagers, options);
+    }
+    /**
+     * 开启事务使用的事务管理器.
+     * @param chainedTx 链式事务管理器
+     * @param transactionManagers 按槽位排列的事务管理器
+     * @param options 链式事务管理器配置
+     * @return 只有一个数据源且未延迟加入时为{@link SingleParticipantTransactionManager},否则为链式事务管理器
+     */
+    private static PlatformTransactionManager entryOf(ChainedTransactionManager chainedTx, PlatformTransactionManager[] transactionManagers, ChainOptions options) {
+        if (transactionManagers.length == 1 && !options.isLazyEnlistment()) {
+            return new SingleParticipantTransactionManager(transactionManagers[0], chainedTx.getTransactionListener());
+        }
+        return chainedTx;
+    }
+    /**
+     * 添加或替换数据源,替换时保留原槽位.
+     * @param key key
+     * @param ds 数据源
+     * @return 新快照
+     */
+    DataSourceRegistry put(String key, DataSource ds) {
+        DataSourceTransactionManager tx = new DataSourceTransactionManager(ds);
+        Integer slot = slots.get(key);
+        if (slot != null) {
+            DataSource[] newDataSources = dataSources.clone();
+            PlatformTransactionManager[] newTransactionManagers = transactionManagers.clone();
+            newDataSources[slot] = ds;
+            newTransactionManagers[slot] = tx;
+            return new DataSourceRegistry(version + 1, keys, newDataSources, newTransactionManagers, replicas, options);
+        }
+        int length = keys.length;
+        String[] newKeys = Arrays.copyOf(keys, length + 1);
+        DataSource[] newDataSources = Arrays.copyOf(dataSources, length + 1);
+        PlatformTransactionManager[] newTransactionManagers = Arrays.copyOf(transactionManagers, length + 1);
+        newKeys[length] = key;
+        newDataSources[length] = ds;
+        newTransactionManagers[length] = tx;
+        return new DataSourceRegistry(version + 1, newKeys, newDataSources, newTransactionManagers, Arrays.copyOf(replicas, length + 1), options).reorder();
+    }
+    /**
+     * 移除数据源,同时移除其从库.
+     * @param key key
+     * @return 新快照,key不存在时返回自身
+     */
+    DataSourceRegistry remove(String key) {
+        Integer slot = slots.get(key);
+        if (slot == null) {
+            return this;
+        }
+        int length = keys.length;
+        String[] newKeys = new String[length - 1];
+        DataSource[] newDataSources = new DataSource[length - 1];
+        PlatformTransactionManager[] newTransactionManagers = new PlatformTransactionManager[length - 1];
+        ReplicaGroup[] newReplicas = new ReplicaGroup[length - 1];
+        for (int i = 0, j = 0; i < length; i++) {
+            if (i != slot) {
+                newKeys[j] = keys[i];
+                newDataSources[j] = dataSources[i];
+                newTransactionManagers[j] = transactionManagers[i];
+                newReplicas[j] = replicas[i];
+                j++;
+            }
+        }
+        return new DataSourceRegistry(version + 1, newKeys, newDataSources, newTransactionManagers, newReplicas, options);
+    }
+    /**
+     * 添加从库.
+     * @param key 主库key
+     * @param replica 从库数据源
+     * @return 新快照,已存在时返回自身
+     */
+    DataSourceRegistry putReplica(String key, DataSource replica) {
+        int slot = slotOf(key);
+        if (slot < 0) {
+            throw new IllegalArgumentException("key 所在的主数据源不存在:" + key);
+        }
+        ReplicaGroup group = ReplicaGroup.add(replicas[slot], replica);
+        if (group == replicas[slot]) {
+            return this;
+        }
+        ReplicaGroup[] newReplicas = replicas.clone();
+        newReplicas[slot] = group;
+        return new DataSourceRegistry(version + 1, keys, dataSources, transactionManagers, newReplicas, options);
+    }
+    /**
+     * 移除从库.
+     * @param key 主库key
+     * @param replica 从库数据源
+     * @return 新快照,不存在时返回自身
+     */
+    DataSourceRegistry removeReplica(String key, DataSource replica) {
+        int slot = slotOf(key);
+        if (slot < 0 || replicas[slot] == null || replicas[slot].indexOf(replica) < 0) {
+            return this;
+        }
+        ReplicaGroup[] newReplicas = replicas.clone();
+        newReplicas[slot] = replicas[slot].remove(replica);
+        return new DataSourceRegistry(version + 1, keys, dataSources, transactionManagers, newReplicas, options);
+    }
+    /**
+     * 获取只读视图,每个有从库的槽位按配置的方式选择一个从库. 同一组合的视图只构建一次.
+     * @return 视图,没有从库时返回自身
+     */
+    DataSourceRegistry readView() {
+        if (readViews == null) {
+            return buildReadView();
+        }
+        int index = 0;
+        for (int slot = 0; slot < replicas.length; slot++) {
+            if (replicas[slot] != null) {
+                index = index * replicas[slot].size() + replicas[slot].choose(options.getReplicaBalancing());
+            }
+        }
+        DataSourceRegistry view = readViews.get(index);
+        if (view == null) {
+            ReplicaGroup.Replica[] chosen = new ReplicaGroup.Replica[replicas.length];
+            for (int slot = replicas.length - 1, rest = index; slot >= 0; slot--) {
+                if (replicas[slot] != null) {
+                    chosen[slot] = replicas[slot].getReplica(rest % replicas[slot].size());
+                    rest /= replicas[slot].size();
+                }
+            }
+            // 并发首次选中时可能重复构建,视图无状态,保留先放入的
+            readViews.compareAndSet(index, null, new DataSourceRegistry(this, chosen));
+            view = readViews.get(index);
+        }
+        return view;
+    }
+    /**
+     * 按事务构建只读视图,用于没有从库或从库组合过多时.
+     * @return 视图,没有从库时返回自身
+     */
+    private DataSourceRegistry buildReadView() {
+        ReplicaGroup.Replica[] chosen = null;
+        for (int slot = 0; slot < replicas.length; slot++) {
+            if (replicas[slot] != null) {
+                if (chosen == null) {
+                    chosen = new ReplicaGroup.Replica[replicas.length];
+                }
+                chosen[slot] = replicas[slot].getReplica(replicas[slot].choose(options.getReplicaBalancing()));
+            }
+        }
+        return chosen == null ? this : new DataSourceRegistry(this, chosen);
+    }
+    /**
+     * 修改链式事务配置.
+     * @param newOptions 链式事务管理器配置
+     * @return 新快照
+     */
+    DataSourceRegistry configure(ChainOptions newOptions) {
+        return new DataSourceRegistry(version + 1, keys, dataSources, transactionManagers, replicas, newOptions).reorder();
+    }
+    /**
+     * 按参与者排序重排槽位,进行中的事务仍使用原快照.
+     * @return 新快照,未配置排序或顺序不变时返回自身
+     */
+    DataSourceRegistry reorder() {
+        ParticipantOrdering ordering = options.getOrdering();
+        int[] order = ordering == null ? null : ordering.order(keys);
+        if (order == null) {
+            return this;
+        }
+        int length = keys.length;
+        String[] newKeys = new String[length];
+        DataSource[] newDataSources = new DataSource[length];
+        PlatformTransactionManager[] newTransactionManagers = new PlatformTransactionManager[length];
+        ReplicaGroup[] newReplicas = new ReplicaGroup[length];
+        for (int slot = 0; slot < length; slot++) {
+            newKeys[slot] = keys[order[slot]];
+            newDataSources[slot] = dataSources[order[slot]];
+            newTransactionManagers[slot] = transactionManagers[order[slot]];
+            newReplicas[slot] = replicas[order[slot]];
+        }
+        return new DataSourceRegistry(version + 1, newKeys, newDataSources, newTransactionManagers, newReplicas, options);
+    }
+    /**
+     * 获取版本号.
+     * @return 版本号
+     */
+    long getVersion() {
+        return version;
+    }
+    /**
+     * 数据源数量.
+     * @return 数量
+     */
+    int size() {
+        return keys.length;
+    }
+    /**
+     * key对应的槽位.
+     * @param key key
+     * @return 槽位,不存在返回-1
+     */
+    int slotOf(String key) {
+        Integer slot = key == null ? null : slots.get(key);
+        return slot == null ? -1 : slot;
+    }
+    /**
+     * 获取key.
+     * @param slot 槽位
+     * @return key
+     */
+    String getKey(int slot) {
+        return keys[slot];
+    }
+    /**
+     * 获取按槽位排列的key.
+     * @return key,即开启事务的顺序
+     */
+    String[] getKeys() {
+        return keys.clone();
+    }
+    /**
+     * 获取数据源.
+     * @param slot 槽位
+     * @return 数据源
+     */
+    DataSource getDataSource(int slot) {
+        return dataSources[slot];
+    }
+    /**
+     * 获取key对应的数据源.
+     * @param key key
+     * @return 数据源,不存在返回null
+     */
+    DataSource getDataSource(String key) {
+        int slot = slotOf(key);
+        return slot < 0 ? null : dataSources[slot];
+    }
+    /**
+     * 获取key对应的主库数据源,只读视图中也返回主库.
+     * @param key key
+     * @return 数据源,不存在返回null
+     */
+    DataSource getPrimaryDataSource(String key) {
+        return primary == null ? getDataSource(key) : primary.getDataSource(key);
+    }
+    /**
+     * 获取从库组.
+     * @param slot 槽位
+     * @return 从库组,没有从库为null
+     */
+    ReplicaGroup getReplicas(int slot) {
+        return replicas[slot];
+    }
+    /**
+     * 数据源是否为key的从库.
+     * @param key key
+     * @param ds 数据源
+     * @return boolean
+     */
+    boolean isReplica(String key, DataSource ds) {
+        int slot = slotOf(key);
+        return slot >= 0 && replicas[slot] != null && replicas[slot].indexOf(ds) >= 0;
+    }
+    /**
+     * 槽位是否由只读视图选中的从库承担.
+     * @param slot 槽位
+     * @return boolean
+     */
+    boolean isReplicaSlot(int slot) {
+        return primary != null && transactionManagers[slot] != primary.transactionManagers[slot];
+    }
+    /**
+     * 获取事务管理器.
+     * @param slot 槽位
+     * @return 事务管理器
+     */
+    PlatformTransactionManager getTransactionManager(int slot) {
+        return transactionManagers[slot];
+    }
+    /**
+     * 获取链式事务管理器配置.
+     * @return 配置
+     */
+    ChainOptions getOptions() {
+        return options;
+    }
+    /**
+     * 获取开启事务使用的事务管理器.
+     * @return 单个参与者时为{@link SingleParticipantTransactionManager},否则为链式事务管理器;没有数据源时为null
+     */
+    PlatformTransactionManager getEntryTransactionManager() {
+        return entryTransactionManager;
+    }
+    /**
+     * 获取链式事务管理器.
+     * @return 链式事务管理器,没有数据源时为null
+     */
+    ChainedTransactionManager getChainedTransactionManager() {
+        return chainedTransactionManager;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * 文件名：DatePartitionRouter.java
+ * 描述： DatePartitionRouter.java
+ * 修改人：zhengmo
+ * 修改时间：2015年11月4日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * 按年分区的数据源key路由.
+ *
+ * <pre>
+ * 生成的key与{@link ChainedTransactionManagerUtil#genMapKey(Date, String...)}一致(eg.2015_hash_sp).
+ * 构造时预先生成[fromYear,toYear]内每年的key,路由时只做整数运算和数组下标访问,不创建任何对象;
+ * 范围外的年份按需拼接key. 实例不可变,线程安全.
+ * ##############使用方法
+ * 1.DatePartitionRouter router = new DatePartitionRouter(2010, 2030, hash, sp);
+ * 2.tx.getSqlSessionTemplate(router.route(date));
+ * 3.tx.scatterGather(bean, router.range(from, to), callBack);
+ * ##############使用方法
+ * </pre>
+ * @author zhengmo
+ */
+public final class DatePartitionRouter {
+    /**
+     * @每天的毫秒数
+     */
+    private static final long MILLIS_PER_DAY = 86400000L;
+    /**
+     * @时区
+     */
+    private final TimeZone timeZone;
+    /**
+     * @预生成key的起始年份
+     */
+    private final int fromYear;
+    /**
+     * @key后缀,如_hash_sp
+     */
+    private final String suffix;
+    /**
+     * @按年份排列的预生成key
+     */
+    private final String[] keys;
+    /**
+     * 构造函数,使用默认时区.
+     * @param fromYear 起始年份
+     * @param toYear 结束年份(含)
+     * @param otherKey hashKey,spKey
+     */
+    public DatePartitionRouter(int fromYear, int toYear, String... otherKey) {
+        this(TimeZone.getDefault(), fromYear, toYear, otherKey);
+    }
+    /**
+     * 构造函数.
+     * @param timeZone 计算年份使用的时区
+     * @param fromYear 起始年份
+     * @param toYear 结束年份(含)
+     * @param otherKey hashKey,spKey
+     */
+    public DatePartitionRouter(TimeZone timeZone, int fromYear, int toYear, String... otherKey) {
+        if (timeZone == null || fromYear > toYear) {
+            throw new IllegalArgumentException("timeZone 不能为空且 fromYear 不能大于 toYear");
+        }
+        this.timeZone = (TimeZone) timeZone.clone();
+        this.fromYear = fromYear;
+        this.suffix = suffix(otherKey);
+        this.keys = new String[toYear - fromYear + 1];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = buildKey(fromYear + i, suffix);
+        }
+    }
+    /**
+     * 时间所在年份的key.
+     * @param date 时间
+     * @return key
+     */
+    public String route(Date date) {
+        return route(date.getTime());
+    }
+    /**
+     * 时间所在年份的key.
+     * @param millis 毫秒时间戳
+     * @return key
+     */
+    public String route(long millis) {
+        return routeYear(yearOf(millis, timeZone));
+    }
+    /**
+     * 年份对应的key.
+     * @param year 年份
+     * @return key
+     */
+    public String routeYear(int year) {
+        int index = year - fromYear;
+        if (index >= 0 && index < keys.length) {
+            return keys[index];
+        }
+        return buildKey(year, suffix);
+    }
+    /**
+     * 覆盖时间区间的各年份key,按年份升序.
+     * @param from 开始时间(含)
+     * @param to 结束时间(含)
+     * @return key集合,from晚于to时为空
+     */
+    public List<String> range(Date from, Date to) {
+        return range(from.getTime(), to.getTime());
+    }
+    /**
+     * 覆盖时间区间的各年份key,按年份升序.
+     * @param fromMillis 开始时间戳(含)
+     * @param toMillis 结束时间戳(含)
+     * @return key集合,from晚于to时为空
+     */
+    public List<String> range(long fromMillis, long toMillis) {
+        if (fromMillis > toMillis) {
+            return Collections.emptyList();
+        }
+        int first = yearOf(fromMillis, timeZone);
+        int last = yearOf(toMillis, timeZone);
+        List<String> list = new ArrayList<String>(last - first + 1);
+        for (int year = first; year <= last; year++) {
+            list.add(routeYear(year));
+        }
+        return list;
+    }
+    /**
+     * 时间在路由时区下的年份.
+     * @param millis 毫秒时间戳
+     * @return 年份
+     */
+    public int yearOf(long millis) {
+        return yearOf(millis, timeZone);
+    }
+    /**
+     * 时间在指定时区下的年份(公历),不创建对象.
+     * @param millis 毫秒时间戳
+     * @param timeZone 时区
+     * @return 年份
+     */
+    static int yearOf(long millis, TimeZone timeZone) {
+        long local = millis + timeZone.getOffset(millis);
+        long days = local / MILLIS_PER_DAY;
+        if (local % MILLIS_PER_DAY < 0) {
+            days--;
+        }
+        // 由1970-01-01起的天数计算公历年份,以3月1日为年初,每400年为一个周期
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        long year = yearOfEra + era * 400;
+        return (int) (monthIndex >= 10 ? year + 1 : year);
+    }
+    /**
+     * 拼接key后缀.
+     * @param otherKey hashKey,spKey
+     * @return 后缀,如_hash_sp
+     */
+    static String suffix(String... otherKey) {
+        if (otherKey == null || otherKey.length == 0) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String key : otherKey) {
+            sb.append('_').append(key);
+        }
+        return sb.toString();
+    }
+    /**
+     * 拼接key,年份不足4位时补0.
+     * @param year 年份
+     * @param suffix 后缀
+     * @return key
+     */
+    static String buildKey(int year, String suffix) {
+        StringBuilder sb = new StringBuilder(4 + suffix.length());
+        if (year >= 0 && year < 1000) {
+            sb.append(year < 10 ? "000" : year < 100 ? "00" : "0");
+        }
+        return sb.append(year).append(suffix).toString();
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * 文件名：GroupCommitExecutor.java
+ * 描述： GroupCommitExecutor.java
+ * 修改人：zhengmo
+ * 修改时间：2015年10月30日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zhengmo.data.transaction.TransactionCallBack;
+
+/**
+ * 组提交执行器.
+ *
+ * <pre>
+ * ##############使用方法
+ * 1.GroupCommitExecutor executor = new GroupCommitExecutor(util, 100, 5, TimeUnit.MILLISECONDS);
+ * 2.Future&lt;Integer&gt; f = executor.submit(callBack);
+ * 3.f.get();
+ * 4.executor.shutdown();
+ * ##############使用方法
+ * 在时间窗口或数量窗口内提交的回调合并到同一个链式事务中执行,每个回调前创建回滚点.
+ * 回调失败只回滚到自己的回滚点,其余回调一起提交;成功回调的Future在整个链式事务提交后才完成,
+ * 提交失败时批内所有回调都以该异常失败. 回滚点之后才加入事务的数据源会在加入时补建回滚点,因此回滚点覆盖所有数据源.
+ * 批量执行器模式下每个回调结束后立即刷新批量语句,失败回调的语句在回滚到回滚点之前刷新,不会在链式事务提交时写入.
+ * </pre>
+ * @author zhengmo
+ */
+public class GroupCommitExecutor {
+    /**
+     * 日志.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(GroupCommitExecutor.class);
+    /**
+     * 提交的回调.
+     * @author zhengmo
+     * @param <T> 结果
+     */
+    private static class Submission<T> extends FutureTask<T> {
+        /**
+         * 回调函数.
+         */
+        private final TransactionCallBack<T> callBack;
+        /**
+         * 构造函数.
+         * @param callBack 回调函数
+         */
+        Submission(TransactionCallBack<T> callBack) {
+            super(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    throw new IllegalStateException("Submission is completed by GroupCommitExecutor");
+                }
+            });
+            this.callBack = callBack;
+        }
+        /**
+         * 执行回调.
+         * @return 结果
+         * @throws Exception 异常
+         */
+        T call() throws Exception {
+            return callBack.doTransaction();
+        }
+        /**
+         * 成功完成.
+         * @param result 结果
+         */
+        @SuppressWarnings("unchecked")
+        void complete(Object result) {
+            set((T) result);
+        }
+        /**
+         * 失败完成.
+         * @param t 异常
+         */
+        void fail(Throwable t) {
+            setException(t);
+        }
+    }
+    /**
+     * @链式事务工具类
+     */
+    private final ChainedTransactionManagerUtil util;
+    /**
+     * @每批最大回调数
+     */
+    private final int maxBatchSize;
+    /**
+     * @每批最长等待时间
+     */
+    private final long maxDelayNanos;
+    /**
+     * @待执行队列
+     */
+    private final BlockingQueue<Submission<?>> queue = new LinkedBlockingQueue<Submission<?>>();
+    /**
+     * @执行线程
+     */
+    private final Thread worker;
+    /**
+     * @是否运行中
+     */
+    private volatile boolean running = true;
+    /**
+     * @保护running与入队的锁,保证关闭后不再有回调入队
+     */
+    private final Object lock = new Object();
+    /**
+     * 构造函数,并启动执行线程.
+     * @param util 链式事务工具类
+     * @param maxBatchSize 每批最大回调数
+     * @param maxDelay 第一个回调到达后最长等待时间
+     * @param unit 时间单位
+     */
+    public GroupCommitExecutor(ChainedTransactionManagerUtil util, int maxBatchSize, long maxDelay, TimeUnit unit) {
+        if (util == null || maxBatchSize <= 0 || maxDelay < 0) {
+            throw new IllegalArgumentException("util 不能为空, maxBatchSize 必须大于0, maxDelay 不能为负数");
+        }
+        this.util = util;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "chained-group-commit");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+    /**
+     * 提交回调.
+     * @param <T> 结果
+     * @param callBack 回调函数
+     * @return 链式事务提交后完成的Future
+     */
+    public <T> Future<T> submit(TransactionCallBack<T> callBack) {
+        if (callBack == null) {
+            throw new IllegalArgumentException("callBack 不能为空");
+        }
+        Submission<T> submission = new Submission<T>(callBack);
+        synchronized (lock) {
+            if (!running) {
+                throw new RejectedExecutionException("GroupCommitExecutor 已关闭");
+            }
+            queue.add(submission);
+        }
+        return submission;
+    }
+    /**
+     * 关闭,不再接收新回调;已提交的回调执行完后执行线程退出.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            running = false;
+        }
+    }
+    /**
+     * 等待执行线程退出.
+     * @param timeout 超时时间
+     * @param unit 时间单位
+     * @return 是否已退出
+     * @throws InterruptedException 中断
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        worker.join(Math.max(1L, unit.toMillis(timeout)));
+        return !worker.isAlive();
+    }
+    /**
+     * 执行线程主循环. 被中断时当前批次与队列中尚未执行的回调都以失败完成.
+     */
+    private void loop() {
+        List<Submission<?>> batch = new ArrayList<Submission<?>>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Submission<?> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    Submission<?> next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                execute(batch);
+            } catch (InterruptedException e) {
+                shutdown();
+                for (Submission<?> submission : batch) {
+                    submission.fail(e);
+                }
+                break;
+            } catch (Throwable t) {
+                LOGGER.warn("Group commit failed " + t.getMessage(), t);
+            } finally {
+                batch.clear();
+            }
+        }
+        boolean interrupted = Thread.interrupted();
+        for (Submission<?> submission = queue.poll(); submission != null; submission = queue.poll()) {
+            submission.fail(new RejectedExecutionException("GroupCommitExecutor 已关闭"));
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    /**
+     * 在同一个链式事务中执行一批回调.
+     * @param batch 回调
+     */
+    private void execute(final List<Submission<?>> batch) {
+        final int size = batch.size();
+        final Object[] results = new Object[size];
+        final Throwable[] failures = new Throwable[size];
+        try {
+            util.doTransaction(new TransactionCallBack<Void>() {
+                @Override
+                public Void doTransaction() throws Exception {
+                    // 重试时重新执行全部回调
+                    Arrays.fill(failures, null);
+                    boolean batchMode = util.isBatchTransaction();
+                    for (int i = 0; i < size; i++) {
+                        Submission<?> submission = batch.get(i);
+                        if (submission.isCancelled()) {
+                            continue;
+                        }
+                        Object savepoint = util.createSavepoint();
+                        try {
+                            results[i] = submission.call();
+                            if (batchMode) {
+                                // 下一个回滚点之前刷新,批量语句的失败归属于本回调
+                                util.flushStatements();
+                            }
+                        } catch (Throwable t) {
+                            if (batchMode) {
+                                discardStatements();
+                            }
+                            util.rollbackToSavepoint(savepoint);
+                            failures[i] = t;
+                            continue;
+                        }
+                        util.releaseSavepoint(savepoint);
+                    }
+                    return null;
+                }
+            });
+        } catch (Throwable t) {
+            for (int i = 0; i < size; i++) {
+                batch.get(i).fail(failures[i] != null ? failures[i] : t);
+            }
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            if (failures[i] != null) {
+                batch.get(i).fail(failures[i]);
+            } else {
+                batch.get(i).complete(results[i]);
+            }
+        }
+    }
+    /**
+     * 刷新失败回调残留的批量语句,使其落在回滚点之后被回滚. 刷新失败时mybatis已清空待执行语句,忽略异常.
+     */
+    private void discardStatements() {
+        try {
+            util.flushStatements();
+        } catch (Throwable ignore) {
+            LOGGER.debug("Flush before rollback to savepoint failed " + ignore.getMessage());
+        }
+    }
+}
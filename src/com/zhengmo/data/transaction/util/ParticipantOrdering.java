@@ -0,0 +1,315 @@
+/*
+ * 文件名：ParticipantOrdering.java
+ * 描述： ParticipantOrdering.java
+ * 修改人：zhengmo
+ * 修改时间：2015年11月17日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.zhengmo.data.transaction.ChainedTransactionListener;
+import com.zhengmo.data.transaction.ChainedTransactionManager;
+
+/**
+ * 链式事务参与者排序.
+ *
+ * <pre>
+ * {@link ChainedTransactionManager}按倒序提交,最后一个槽位最先提交;它提交失败时其余参与者都能回滚(STATE_ROLLED_BACK),
+ * 越靠前的槽位提交失败,已提交的参与者越多(STATE_MIXED)且浪费的提交越多.
+ * 因此按数据源key统计提交失败率与提交耗时(指数滑动平均),定期把风险最高的参与者排到最后.
+ * 失败率与耗时按2的幂分档后比较,同档保持原顺序,避免统计抖动导致频繁重排.
+ * 固定位置(pin)的参与者始终在指定槽位,不参与自适应排序.
+ * 不可变,修改返回新实例,统计在新旧实例间共享.延迟加入事务时提交顺序由使用顺序决定,排序只影响非延迟加入的事务.
+ * </pre>
+ * @author zhengmo
+ */
+final class ParticipantOrdering {
+    /**
+     * 一个参与者的提交统计. 并发更新可能丢失个别样本,不影响排序.
+     * @author zhengmo
+     */
+    static final class Stats {
+        /**
+         * 提交失败率的指数滑动平均,百万分之一.
+         */
+        private volatile long failureRate;
+        /**
+         * 成功提交耗时的指数滑动平均,纳秒,未统计为0.
+         */
+        private volatile long latency;
+        /**
+         * 记录一次提交.
+         * @param nanos 耗时
+         * @param success 是否成功
+         */
+        void record(long nanos, boolean success) {
+            long rate = failureRate;
+            failureRate = rate + ((success ? 0L : PPM) - rate) / DECAY;
+            if (success) {
+                long current = latency;
+                latency = current == 0 ? Math.max(nanos, 1L) : current + (nanos - current) / DECAY;
+            }
+        }
+        /**
+         * @return 失败率分档,低于0.1%为0
+         */
+        int failureBucket() {
+            long rate = failureRate / (PPM / 1000);
+            return 64 - Long.numberOfLeadingZeros(rate);
+        }
+        /**
+         * @return 耗时分档,按微秒
+         */
+        int latencyBucket() {
+            return 64 - Long.numberOfLeadingZeros(latency / 1000L);
+        }
+    }
+    /**
+     * 按槽位记录提交统计的监听器,所有回调转发给原监听器.
+     * @author zhengmo
+     */
+    static final class StatsListener implements ChainedTransactionListener {
+        /**
+         * 原监听器,可为null.
+         */
+        private final ChainedTransactionListener delegate;
+        /**
+         * 按槽位排列的统计.
+         */
+        private final Stats[] stats;
+        /**
+         * 构造函数.
+         * @param delegate 原监听器
+         * @param stats 按槽位排列的统计
+         */
+        StatsListener(ChainedTransactionListener delegate, Stats[] stats) {
+            this.delegate = delegate;
+            this.stats = stats;
+        }
+        @Override
+        public void afterBegin(int slot, long nanos, boolean success) {
+            if (delegate != null) {
+                delegate.afterBegin(slot, nanos, success);
+            }
+        }
+        @Override
+        public void afterCommit(int slot, long nanos, boolean success) {
+            stats[slot].record(nanos, success);
+            if (delegate != null) {
+                delegate.afterCommit(slot, nanos, success);
+            }
+        }
+        @Override
+        public void afterRollback(int slot, long nanos, boolean success) {
+            if (delegate != null) {
+                delegate.afterRollback(slot, nanos, success);
+            }
+        }
+        @Override
+        public void afterCompletion(long nanos, int state, int rollbacksAfterCommitFailure) {
+            if (delegate != null) {
+                delegate.afterCompletion(nanos, state, rollbacksAfterCommitFailure);
+            }
+        }
+    }
+    /**
+     * @失败率单位
+     */
+    private static final long PPM = 1000000L;
+    /**
+     * @滑动平均的衰减系数
+     */
+    private static final int DECAY = 16;
+    /**
+     * @自适应排序周期,纳秒,0为只按固定位置排序
+     */
+    private final long intervalNanos;
+    /**
+     * @固定位置,负数从末尾数起,-1为最后一个槽位(最先提交)
+     */
+    private final Map<String, Integer> pins;
+    /**
+     * @按key的统计
+     */
+    private final ConcurrentMap<String, Stats> stats;
+    /**
+     * @下次排序时间({@link System#nanoTime()})
+     */
+    private final AtomicLong nextNanos;
+    /**
+     * 构造函数.
+     * @param intervalNanos 自适应排序周期
+     * @param pins 固定位置
+     * @param stats 统计
+     * @param nextNanos 下次排序时间
+     */
+    private ParticipantOrdering(long intervalNanos, Map<String, Integer> pins, ConcurrentMap<String, Stats> stats, AtomicLong nextNanos) {
+        this.intervalNanos = intervalNanos;
+        this.pins = pins;
+        this.stats = stats;
+        this.nextNanos = nextNanos;
+    }
+    /**
+     * 修改自适应排序周期.
+     * @param ordering 原排序,可为null
+     * @param newIntervalNanos 周期,0为关闭自适应排序
+     * @return 新排序,既没有周期也没有固定位置时为null
+     */
+    static ParticipantOrdering withInterval(ParticipantOrdering ordering, long newIntervalNanos) {
+        if (ordering == null) {
+            return newIntervalNanos <= 0 ? null : new ParticipantOrdering(newIntervalNanos, Collections.<String, Integer> emptyMap(), new ConcurrentHashMap<String, Stats>(),
+                    new AtomicLong(System.nanoTime() + newIntervalNanos));
+        }
+        return ordering.create(Math.max(newIntervalNanos, 0L), ordering.pins);
+    }
+    /**
+     * 固定参与者的位置.
+     * @param ordering 原排序,可为null
+     * @param key 数据源key
+     * @param position 槽位,负数从末尾数起;为null时取消固定
+     * @return 新排序,既没有周期也没有固定位置时为null
+     */
+    static ParticipantOrdering withPin(ParticipantOrdering ordering, String key, Integer position) {
+        Map<String, Integer> newPins = new HashMap<String, Integer>(ordering == null ? Collections.<String, Integer> emptyMap() : ordering.pins);
+        if (position == null) {
+            newPins.remove(key);
+        } else {
+            newPins.put(key, position);
+        }
+        if (ordering == null) {
+            return new ParticipantOrdering(0L, newPins, new ConcurrentHashMap<String, Stats>(), new AtomicLong());
+        }
+        return ordering.create(ordering.intervalNanos, newPins);
+    }
+    /**
+     * 生成共享统计的新实例.
+     * @param newIntervalNanos 周期
+     * @param newPins 固定位置
+     * @return 新排序,既没有周期也没有固定位置时为null
+     */
+    private ParticipantOrdering create(long newIntervalNanos, Map<String, Integer> newPins) {
+        if (newIntervalNanos == 0 && newPins.isEmpty()) {
+            return null;
+        }
+        return new ParticipantOrdering(newIntervalNanos, newPins, stats, nextNanos);
+    }
+    /**
+     * 包装监听器,自适应排序时记录提交统计.
+     * @param delegate 原监听器,可为null
+     * @param keys 按槽位排列的数据源key
+     * @return 监听器
+     */
+    ChainedTransactionListener listener(ChainedTransactionListener delegate, String[] keys) {
+        if (intervalNanos == 0) {
+            return delegate;
+        }
+        Stats[] slotStats = new Stats[keys.length];
+        for (int slot = 0; slot < keys.length; slot++) {
+            slotStats[slot] = statsOf(keys[slot]);
+        }
+        return new StatsListener(delegate, slotStats);
+    }
+    /**
+     * 是否到了自适应排序的时间,到了时只有一个调用者返回true.
+     * @return boolean
+     */
+    boolean isDue() {
+        if (intervalNanos == 0) {
+            return false;
+        }
+        long now = System.nanoTime();
+        long next = nextNanos.get();
+        return now - next >= 0 && nextNanos.compareAndSet(next, now + intervalNanos);
+    }
+    /**
+     * 计算新的槽位顺序: 固定位置的参与者放在指定槽位,其余按风险从低到高填入剩余槽位.
+     * @param keys 按槽位排列的数据源key
+     * @return 新顺序,元素为原槽位;顺序不变返回null
+     */
+    int[] order(final String[] keys) {
+        int length = keys.length;
+        if (length < 2) {
+            return null;
+        }
+        int[] order = new int[length];
+        Arrays.fill(order, -1);
+        Integer[] free = new Integer[length];
+        int freeCount = 0;
+        for (int slot = 0; slot < length; slot++) {
+            Integer position = pins.get(keys[slot]);
+            if (position != null) {
+                int target = Math.max(0, Math.min(length - 1, position < 0 ? length + position : position));
+                if (order[target] < 0) {
+                    order[target] = slot;
+                    continue;
+                }
+            }
+            free[freeCount++] = slot;
+        }
+        final int[] failureBuckets = new int[length];
+        final int[] latencyBuckets = new int[length];
+        for (int slot = 0; slot < length && intervalNanos > 0; slot++) {
+            Stats stat = statsOf(keys[slot]);
+            failureBuckets[slot] = stat.failureBucket();
+            latencyBuckets[slot] = stat.latencyBucket();
+        }
+        Arrays.sort(free, 0, freeCount, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                if (failureBuckets[a] != failureBuckets[b]) {
+                    return failureBuckets[a] < failureBuckets[b] ? -1 : 1;
+                }
+                if (latencyBuckets[a] != latencyBuckets[b]) {
+                    return latencyBuckets[a] < latencyBuckets[b] ? -1 : 1;
+                }
+                return a.compareTo(b);
+            }
+        });
+        boolean changed = false;
+        for (int position = 0, next = 0; position < length; position++) {
+            if (order[position] < 0) {
+                order[position] = free[next++];
+            }
+            changed |= order[position] != position;
+        }
+        return changed ? order : null;
+    }
+    /**
+     * 获取固定位置.
+     * @return 数据源key与槽位
+     */
+    Map<String, Integer> getPins() {
+        return Collections.unmodifiableMap(pins);
+    }
+    /**
+     * @return 自适应排序周期,纳秒
+     */
+    long getIntervalNanos() {
+        return intervalNanos;
+    }
+    /**
+     * 获取key的统计.
+     * @param key 数据源key
+     * @return 统计
+     */
+    private Stats statsOf(String key) {
+        Stats stat = stats.get(key);
+        if (stat == null) {
+            Stats created = new Stats();
+            stat = stats.putIfAbsent(key, created);
+            if (stat == null) {
+                stat = created;
+            }
+        }
+        return stat;
+    }
+}
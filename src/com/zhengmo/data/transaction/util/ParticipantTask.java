@@ -0,0 +1,70 @@
+/*
+ * 文件名：ParticipantTask.java
+ * 描述： ParticipantTask.java
+ * 修改人：zhengmo
+ * 修改时间：2015年11月6日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.util;
+
+import java.util.concurrent.Callable;
+
+import javax.sql.DataSource;
+
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * 在其它线程上使用链式事务参与者连接的任务.
+ *
+ * <pre>
+ * 构造时(在事务线程上)取得数据源绑定的连接与链式事务的截止时间,执行时绑定到执行线程,结束后解绑.
+ * 在事务线程上直接执行时连接已绑定,不重复绑定. 提交/回滚仍由链式事务负责,同一连接同一时刻只能被一个线程使用.
+ * </pre>
+ * @author zhengmo
+ * @param <T> t
+ */
+abstract class ParticipantTask<T> implements Callable<T> {
+    /**
+     * @参与者数据源
+     */
+    private final DataSource dataSource;
+    /**
+     * @事务线程上绑定的连接
+     */
+    private final Object connectionHolder;
+    /**
+     * @事务线程上的截止时间
+     */
+    private final ChainDeadline deadline;
+    /**
+     * 构造函数,必须在事务线程上调用.
+     * @param dataSource 参与者数据源
+     */
+    ParticipantTask(DataSource dataSource) {
+        this.dataSource = dataSource;
+        this.connectionHolder = TransactionSynchronizationManager.getResource(dataSource);
+        this.deadline = ChainDeadline.current();
+    }
+    @Override
+    public final T call() throws Exception {
+        boolean bind = connectionHolder != null && TransactionSynchronizationManager.getResource(dataSource) == null;
+        if (bind) {
+            TransactionSynchronizationManager.bindResource(dataSource, connectionHolder);
+        }
+        ChainDeadline previousDeadline = ChainDeadline.bind(deadline);
+        try {
+            return callInParticipant();
+        } finally {
+            ChainDeadline.bind(previousDeadline);
+            if (bind) {
+                TransactionSynchronizationManager.unbindResource(dataSource);
+            }
+        }
+    }
+    /**
+     * 在参与者连接上执行.
+     * @return T t
+     * @throws Exception 异常
+     */
+    protected abstract T callInParticipant() throws Exception;
+}
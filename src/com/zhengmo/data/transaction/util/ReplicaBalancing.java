@@ -0,0 +1,23 @@
+/*
+ * 文件名：ReplicaBalancing.java
+ * 描述： ReplicaBalancing.java
+ * 修改人：zhengmo
+ * 修改时间：2015年11月10日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.util;
+
+/**
+ * 只读事务选择从库的方式.
+ * @author zhengmo
+ */
+public enum ReplicaBalancing {
+    /**
+     * 轮询.
+     */
+    ROUND_ROBIN,
+    /**
+     * 选择开启/提交耗时(指数滑动平均)最低的从库,定期轮询一次以刷新其他从库的耗时.
+     */
+    LEAST_LATENCY
+}
@@ -0,0 +1,246 @@
+/*
+ * 文件名：ReplicaGroup.java
+ * 描述： ReplicaGroup.java
+ * 修改人：zhengmo
+ * 修改时间：2015年11月10日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.util;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.zhengmo.data.transaction.ChainedTransactionListener;
+
+/**
+ * 一个数据源key的从库组.
+ *
+ * <pre>
+ * 从库列表不可变,添加/移除生成新组;耗时统计保存在{@link Replica}上,新组沿用原有从库的统计.
+ * </pre>
+ * @author zhengmo
+ */
+final class ReplicaGroup {
+    /**
+     * 从库.
+     * @author zhengmo
+     */
+    static final class Replica {
+        /**
+         * 数据源.
+         */
+        private final DataSource dataSource;
+        /**
+         * 事务管理器.
+         */
+        private final PlatformTransactionManager transactionManager;
+        /**
+         * 耗时的指数滑动平均,纳秒,未统计为0. 并发更新可能丢失个别样本,不影响选择.
+         */
+        private volatile long latency;
+        /**
+         * 构造函数.
+         * @param dataSource 数据源
+         */
+        Replica(DataSource dataSource) {
+            this.dataSource = dataSource;
+            this.transactionManager = new DataSourceTransactionManager(dataSource);
+        }
+        /**
+         * 记录一次耗时,失败按惩罚耗时记录.
+         * @param nanos 耗时
+         * @param success 是否成功
+         */
+        void record(long nanos, boolean success) {
+            long current = latency;
+            long sample = success ? Math.max(nanos, 1L) : Math.max(FAILURE_PENALTY_NANOS, current * 2);
+            latency = current == 0 ? sample : current + (sample - current) / 8;
+        }
+        /**
+         * @return 数据源
+         */
+        DataSource getDataSource() {
+            return dataSource;
+        }
+        /**
+         * @return 事务管理器
+         */
+        PlatformTransactionManager getTransactionManager() {
+            return transactionManager;
+        }
+    }
+    /**
+     * 按槽位记录从库耗时的监听器,其余回调转发给原监听器.
+     * @author zhengmo
+     */
+    static final class LatencyListener implements ChainedTransactionListener {
+        /**
+         * 原监听器,可为null.
+         */
+        private final ChainedTransactionListener delegate;
+        /**
+         * 各槽位选中的从库,未使用从库为null.
+         */
+        private final Replica[] chosen;
+        /**
+         * 构造函数.
+         * @param delegate 原监听器
+         * @param chosen 各槽位选中的从库
+         */
+        LatencyListener(ChainedTransactionListener delegate, Replica[] chosen) {
+            this.delegate = delegate;
+            this.chosen = chosen;
+        }
+        @Override
+        public void afterBegin(int slot, long nanos, boolean success) {
+            if (chosen[slot] != null) {
+                chosen[slot].record(nanos, success);
+            }
+            if (delegate != null) {
+                delegate.afterBegin(slot, nanos, success);
+            }
+        }
+        @Override
+        public void afterCommit(int slot, long nanos, boolean success) {
+            if (chosen[slot] != null) {
+                chosen[slot].record(nanos, success);
+            }
+            if (delegate != null) {
+                delegate.afterCommit(slot, nanos, success);
+            }
+        }
+        @Override
+        public void afterRollback(int slot, long nanos, boolean success) {
+            if (delegate != null) {
+                delegate.afterRollback(slot, nanos, success);
+            }
+        }
+        @Override
+        public void afterCompletion(long nanos, int state, int rollbacksAfterCommitFailure) {
+            if (delegate != null) {
+                delegate.afterCompletion(nanos, state, rollbacksAfterCommitFailure);
+            }
+        }
+    }
+    /**
+     * @失败时记录的最小耗时
+     */
+    private static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * @最低耗时模式下每隔多少次轮询一次
+     */
+    private static final int PROBE_INTERVAL = 16;
+    /**
+     * @从库
+     */
+    private final Replica[] replicas;
+    /**
+     * @选择计数
+     */
+    private final AtomicInteger counter = new AtomicInteger();
+    /**
+     * 构造函数.
+     * @param replicas 从库
+     */
+    private ReplicaGroup(Replica[] replicas) {
+        this.replicas = replicas;
+    }
+    /**
+     * 添加从库.
+     * @param group 原组,可为null
+     * @param dataSource 从库数据源
+     * @return 新组,已存在时返回原组
+     */
+    static ReplicaGroup add(ReplicaGroup group, DataSource dataSource) {
+        if (group == null) {
+            return new ReplicaGroup(new Replica[] {new Replica(dataSource) });
+        }
+        if (group.indexOf(dataSource) >= 0) {
+            return group;
+        }
+        Replica[] newReplicas = Arrays.copyOf(group.replicas, group.replicas.length + 1);
+        newReplicas[group.replicas.length] = new Replica(dataSource);
+        return new ReplicaGroup(newReplicas);
+    }
+    /**
+     * 移除从库.
+     * @param dataSource 从库数据源
+     * @return 新组,移除后为空返回null,不存在返回自身
+     */
+    ReplicaGroup remove(DataSource dataSource) {
+        int index = indexOf(dataSource);
+        if (index < 0) {
+            return this;
+        }
+        if (replicas.length == 1) {
+            return null;
+        }
+        Replica[] newReplicas = new Replica[replicas.length - 1];
+        System.arraycopy(replicas, 0, newReplicas, 0, index);
+        System.arraycopy(replicas, index + 1, newReplicas, index, replicas.length - index - 1);
+        return new ReplicaGroup(newReplicas);
+    }
+    /**
+     * 选择从库.
+     * @param balancing 选择方式
+     * @return 从库下标
+     */
+    int choose(ReplicaBalancing balancing) {
+        int count = counter.getAndIncrement() & Integer.MAX_VALUE;
+        if (replicas.length == 1) {
+            return 0;
+        }
+        if (balancing == ReplicaBalancing.LEAST_LATENCY && count % PROBE_INTERVAL != 0) {
+            int best = 0;
+            for (int i = 1; i < replicas.length; i++) {
+                if (replicas[i].latency < replicas[best].latency) {
+                    best = i;
+                }
+            }
+            return best;
+        }
+        return count % replicas.length;
+    }
+    /**
+     * 获取从库.
+     * @param index 下标
+     * @return 从库
+     */
+    Replica getReplica(int index) {
+        return replicas[index];
+    }
+    /**
+     * 从库数量.
+     * @return 数量
+     */
+    int size() {
+        return replicas.length;
+    }
+    /**
+     * 获取从库数据源.
+     * @param index 下标
+     * @return 数据源
+     */
+    DataSource getDataSource(int index) {
+        return replicas[index].dataSource;
+    }
+    /**
+     * 从库下标.
+     * @param dataSource 数据源
+     * @return 下标,不存在返回-1
+     */
+    int indexOf(DataSource dataSource) {
+        for (int i = 0; i < replicas.length; i++) {
+            if (replicas[i].dataSource == dataSource) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
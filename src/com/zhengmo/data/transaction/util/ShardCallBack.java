@@ -0,0 +1,26 @@
+/*
+ * 文件名：ShardCallBack.java
+ * 描述： ShardCallBack.java
+ * 修改人：zhengmo
+ * 修改时间：2015年11月3日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.util;
+
+import org.mybatis.spring.SqlSessionTemplate;
+
+/**
+ * 分片回调函数接口.
+ * @author zhengmo
+ * @param <T> t
+ */
+public interface ShardCallBack<T> {
+    /**
+     * 在单个分片上执行.
+     * @param key 数据源key
+     * @param sqlSessionTemplate 该数据源的sqlSessionTemplate,使用链式事务中的连接
+     * @return T t
+     * @throws Exception 异常
+     */
+    public T doInShard(String key, SqlSessionTemplate sqlSessionTemplate) throws Exception;
+}
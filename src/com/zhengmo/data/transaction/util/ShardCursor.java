@@ -0,0 +1,371 @@
+/*
+ * 文件名：ShardCursor.java
+ * 描述： ShardCursor.java
+ * 修改人：zhengmo
+ * 修改时间：2015年11月6日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.util;
+
+import java.io.Closeable;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.apache.ibatis.session.ResultContext;
+import org.apache.ibatis.session.ResultHandler;
+import org.mybatis.spring.SqlSessionTemplate;
+
+/**
+ * 跨分片流式游标.
+ *
+ * <pre>
+ * 每个分片由一个生产线程通过{@link ResultHandler}逐行读取,放入容量为bufferSize的队列;
+ * 有比较器时按比较器做k路归并(比较相等时按分片顺序),否则按分片顺序依次连接,连接模式下同一时刻只读取一个分片.
+ * 内存占用只与分片数和bufferSize有关,与结果总量无关. 驱动端也需流式读取时,在mapper中设置fetchSize.
+ * 游标只能在打开它的事务线程上使用,读完或{@link #close()}后释放;链式事务结束前会自动关闭未关闭的游标.
+ * </pre>
+ * @author zhengmo
+ * @param <T> t
+ */
+public class ShardCursor<T> implements Iterator<T>, Closeable {
+    /**
+     * @分片结束标记
+     */
+    private static final Object END = new Object();
+    /**
+     * @null结果标记
+     */
+    private static final Object NULL = new Object();
+    /**
+     * 分片异常.
+     * @author zhengmo
+     */
+    private static final class Failure {
+        /**
+         * 异常.
+         */
+        private final Throwable cause;
+        /**
+         * 构造函数.
+         * @param cause 异常
+         */
+        Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+    /**
+     * 分片生产者.
+     * @author zhengmo
+     */
+    private final class Producer extends ParticipantTask<Object> implements ResultHandler {
+        /**
+         * 分片key.
+         */
+        private final String key;
+        /**
+         * 分片sqlSessionTemplate.
+         */
+        private final SqlSessionTemplate sqlSessionTemplate;
+        /**
+         * 缓冲队列.
+         */
+        private final BlockingQueue<Object> queue;
+        /**
+         * 执行任务.
+         */
+        private final FutureTask<Object> task = new FutureTask<Object>(this);
+        /**
+         * 是否已启动.
+         */
+        private boolean started;
+        /**
+         * 构造函数.
+         * @param key 分片key
+         * @param dataSource 分片数据源
+         * @param sqlSessionTemplate 分片sqlSessionTemplate
+         */
+        Producer(String key, DataSource dataSource, SqlSessionTemplate sqlSessionTemplate) {
+            super(dataSource);
+            this.key = key;
+            this.sqlSessionTemplate = sqlSessionTemplate;
+            this.queue = new ArrayBlockingQueue<Object>(bufferSize);
+        }
+        /**
+         * 启动生产线程.
+         */
+        void start() {
+            if (!started) {
+                started = true;
+                Thread thread = new Thread(task, "chained-shard-cursor-" + key);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        @Override
+        protected Object callInParticipant() throws Exception {
+            try {
+                sqlSessionTemplate.select(statement, parameter, this);
+                offer(END);
+            } catch (Throwable e) {
+                offer(new Failure(e));
+            }
+            return null;
+        }
+        @Override
+        public void handleResult(ResultContext context) {
+            Object value = context.getResultObject();
+            if (!offer(value == null ? NULL : value)) {
+                context.stop();
+            }
+        }
+        /**
+         * 放入队列,队列满时等待,游标关闭后放弃.
+         * @param value 值
+         * @return 是否放入
+         */
+        private boolean offer(Object value) {
+            try {
+                while (!closed) {
+                    if (queue.offer(value, 100, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+        /**
+         * 取下一个值,阻塞直到有值.
+         * @return 值,分片结束返回END
+         */
+        Object take() {
+            Object value;
+            try {
+                value = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IllegalStateException("读取分片" + key + "时线程被中断", e);
+            }
+            if (value instanceof Failure) {
+                close();
+                Throwable cause = ((Failure) value).cause;
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new UndeclaredThrowableException(cause, "分片" + key + "查询异常");
+            }
+            return value;
+        }
+    }
+    /**
+     * 归并时的分片当前值.
+     * @author zhengmo
+     */
+    private static final class Head {
+        /**
+         * 值.
+         */
+        private final Object value;
+        /**
+         * 分片下标.
+         */
+        private final int index;
+        /**
+         * 构造函数.
+         * @param value 值
+         * @param index 分片下标
+         */
+        Head(Object value, int index) {
+            this.value = value;
+            this.index = index;
+        }
+    }
+    /**
+     * @语句id
+     */
+    private final String statement;
+    /**
+     * @参数
+     */
+    private final Object parameter;
+    /**
+     * @每个分片的缓冲行数
+     */
+    private final int bufferSize;
+    /**
+     * @比较器,为null时按分片顺序连接
+     */
+    private final Comparator<? super T> comparator;
+    /**
+     * @分片生产者,按分片顺序
+     */
+    private final List<Producer> producers;
+    /**
+     * @归并堆
+     */
+    private PriorityQueue<Head> heads;
+    /**
+     * @连接模式下当前分片下标
+     */
+    private int current;
+    /**
+     * @下一个值,未取时为null
+     */
+    private Object next;
+    /**
+     * @是否已关闭
+     */
+    private volatile boolean closed;
+    /**
+     * 构造函数.
+     * @param statement 语句id
+     * @param parameter 参数
+     * @param bufferSize 每个分片的缓冲行数
+     * @param comparator 比较器,为null时按分片顺序连接
+     * @param shardCount 分片数量
+     */
+    ShardCursor(String statement, Object parameter, int bufferSize, Comparator<? super T> comparator, int shardCount) {
+        this.statement = statement;
+        this.parameter = parameter;
+        this.bufferSize = bufferSize;
+        this.comparator = comparator;
+        this.producers = new ArrayList<Producer>(shardCount);
+    }
+    /**
+     * 添加分片,必须在事务线程上按分片顺序调用.
+     * @param key 分片key
+     * @param dataSource 分片数据源
+     * @param sqlSessionTemplate 分片sqlSessionTemplate
+     */
+    void addShard(String key, DataSource dataSource, SqlSessionTemplate sqlSessionTemplate) {
+        producers.add(new Producer(key, dataSource, sqlSessionTemplate));
+    }
+    @Override
+    public boolean hasNext() {
+        if (next == null && !closed) {
+            next = comparator == null ? nextConcatenated() : nextMerged();
+            if (next == END) {
+                next = null;
+                close();
+            }
+        }
+        return next != null;
+    }
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Object value = next;
+        next = null;
+        return value == NULL ? null : (T) value;
+    }
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+    /**
+     * 关闭游标,停止各分片读取并等待生产线程结束. 可重复调用.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        boolean interrupted = false;
+        for (Producer producer : producers) {
+            if (!producer.started) {
+                continue;
+            }
+            producer.queue.clear();
+            while (true) {
+                try {
+                    producer.task.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    /**
+     * 是否已关闭.
+     * @return boolean
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+    /**
+     * 连接模式的下一个值.
+     * @return 值,全部结束返回END
+     */
+    private Object nextConcatenated() {
+        while (current < producers.size()) {
+            Producer producer = producers.get(current);
+            producer.start();
+            Object value = producer.take();
+            if (value != END) {
+                return value;
+            }
+            current++;
+        }
+        return END;
+    }
+    /**
+     * 归并模式的下一个值.
+     * @return 值,全部结束返回END
+     */
+    private Object nextMerged() {
+        if (heads == null) {
+            heads = new PriorityQueue<Head>(Math.max(1, producers.size()), new Comparator<Head>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public int compare(Head a, Head b) {
+                    int result = comparator.compare(a.value == NULL ? null : (T) a.value, b.value == NULL ? null : (T) b.value);
+                    return result != 0 ? result : a.index - b.index;
+                }
+            });
+            for (Producer producer : producers) {
+                producer.start();
+            }
+            for (int i = 0; i < producers.size(); i++) {
+                Object value = producers.get(i).take();
+                if (value != END) {
+                    heads.add(new Head(value, i));
+                }
+            }
+        }
+        Head head = heads.poll();
+        if (head == null) {
+            return END;
+        }
+        Object value = producers.get(head.index).take();
+        if (value != END) {
+            heads.add(new Head(value, head.index));
+        }
+        return head.value;
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ * 文件名：ShardResultCache.java
+ * 描述： ShardResultCache.java
+ * 修改人：zhengmo
+ * 修改时间：2015年11月9日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.plugin.Intercepts;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.plugin.Plugin;
+import org.apache.ibatis.plugin.Signature;
+import org.mybatis.spring.SqlSessionTemplate;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * 跨事务的分片查询结果缓存.
+ *
+ * <pre>
+ * 按(分片数据源,语句id,参数)缓存selectList结果,容量满时按LRU淘汰,超过存活时间后失效. 参数需正确实现equals/hashCode.
+ * 失效以mapper命名空间为单位: 事务中对某分片某命名空间的写操作先记为待定,
+ * 首次待定写操作时向事务同步注册回调,事务提交后才使该分片该命名空间的缓存失效,回滚时直接丢弃,因此不依赖事务由谁开启;
+ * 事务外的写操作执行后立即失效.
+ * 没有事务同步的线程(如{@link ChainedTransactionManagerUtil}的并行执行线程)上的写操作由链式事务结束时清理.
+ * 写过某命名空间的事务再读该命名空间时不经过缓存,因此缓存中不会出现未提交的数据.
+ * 每个(分片,命名空间)有一个版本号,失效即版本号加一,查询开始后版本号变化的结果不放入缓存,旧版本的缓存项读取时丢弃.
+ * 只有事务外的查询结果放入缓存: 可重复读事务的快照可能早于版本号读取前的提交,其结果放入缓存会在存活时间内一直是旧数据.
+ * 返回的列表只读,多个调用方共享.
+ * </pre>
+ * @author zhengmo
+ */
+public class ShardResultCache {
+    /**
+     * @分段数
+     */
+    private static final int SEGMENTS = 16;
+    /**
+     * 缓存key.
+     * @author zhengmo
+     */
+    private static final class CacheKey {
+        /**
+         * 分片数据源.
+         */
+        private final DataSource dataSource;
+        /**
+         * 语句id.
+         */
+        private final String statement;
+        /**
+         * 参数.
+         */
+        private final Object parameter;
+        /**
+         * 哈希值.
+         */
+        private final int hash;
+        /**
+         * 构造函数.
+         * @param dataSource 分片数据源
+         * @param statement 语句id
+         * @param parameter 参数
+         */
+        CacheKey(DataSource dataSource, String statement, Object parameter) {
+            this.dataSource = dataSource;
+            this.statement = statement;
+            this.parameter = parameter;
+            this.hash = (System.identityHashCode(dataSource) * 31 + statement.hashCode()) * 31 + (parameter == null ? 0 : parameter.hashCode());
+        }
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) obj;
+            return dataSource == other.dataSource && statement.equals(other.statement) && (parameter == null ? other.parameter == null : parameter.equals(other.parameter));
+        }
+    }
+    /**
+     * 命名空间key.
+     * @author zhengmo
+     */
+    private static final class NamespaceKey {
+        /**
+         * 分片数据源.
+         */
+        private final DataSource dataSource;
+        /**
+         * 命名空间.
+         */
+        private final String namespace;
+        /**
+         * 构造函数.
+         * @param dataSource 分片数据源
+         * @param namespace 命名空间
+         */
+        NamespaceKey(DataSource dataSource, String namespace) {
+            this.dataSource = dataSource;
+            this.namespace = namespace;
+        }
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(dataSource) * 31 + namespace.hashCode();
+        }
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof NamespaceKey && ((NamespaceKey) obj).dataSource == dataSource && ((NamespaceKey) obj).namespace.equals(namespace);
+        }
+    }
+    /**
+     * 缓存项.
+     * @author zhengmo
+     */
+    private static final class CachedResult {
+        /**
+         * 结果.
+         */
+        private final List<?> value;
+        /**
+         * 查询时的版本号.
+         */
+        private final long generation;
+        /**
+         * 过期时间.
+         */
+        private final long expiresNanos;
+        /**
+         * 构造函数.
+         * @param value 结果
+         * @param generation 版本号
+         * @param expiresNanos 过期时间
+         */
+        CachedResult(List<?> value, long generation, long expiresNanos) {
+            this.value = value;
+            this.generation = generation;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+    /**
+     * 事务中待定的写操作.
+     * @author zhengmo
+     */
+    private static final class PendingWrites {
+        /**
+         * 分片数据源.
+         */
+        private final DataSource dataSource;
+        /**
+         * 写过的命名空间.
+         */
+        private final Set<String> namespaces = Collections.synchronizedSet(new HashSet<String>());
+        /**
+         * 构造函数.
+         * @param dataSource 分片数据源
+         */
+        PendingWrites(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+    }
+    /**
+     * 事务结束后使待定写操作失效的同步回调.
+     * @author zhengmo
+     */
+    private final class PendingSynchronization extends TransactionSynchronizationAdapter {
+        /**
+         * 事务连接.
+         */
+        private final Object connectionHolder;
+        /**
+         * 构造函数.
+         * @param connectionHolder 事务连接
+         */
+        PendingSynchronization(Object connectionHolder) {
+            this.connectionHolder = connectionHolder;
+        }
+        @Override
+        public void afterCompletion(int status) {
+            complete(Collections.singletonList(connectionHolder), status == STATUS_COMMITTED);
+        }
+    }
+    /**
+     * 记录写操作的拦截器.
+     * @author zhengmo
+     */
+    @Intercepts({@Signature(type = Executor.class, method = "update", args = {MappedStatement.class, Object.class})})
+    private final class WriteInterceptor implements Interceptor {
+        /**
+         * 分片数据源.
+         */
+        private final DataSource dataSource;
+        /**
+         * 构造函数.
+         * @param dataSource 分片数据源
+         */
+        WriteInterceptor(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+        @Override
+        public Object intercept(Invocation invocation) throws Throwable {
+            String namespace = namespace(((MappedStatement) invocation.getArgs()[0]).getId());
+            Object connectionHolder = TransactionSynchronizationManager.getResource(dataSource);
+            if (connectionHolder == null) {
+                try {
+                    return invocation.proceed();
+                } finally {
+                    invalidate(dataSource, namespace);
+                }
+            }
+            PendingWrites writes = pending.get(connectionHolder);
+            if (writes == null) {
+                PendingWrites newWrites = new PendingWrites(dataSource);
+                writes = pending.putIfAbsent(connectionHolder, newWrites);
+                if (writes == null) {
+                    writes = newWrites;
+                    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+                        TransactionSynchronizationManager.registerSynchronization(new PendingSynchronization(connectionHolder));
+                    }
+                }
+            }
+            writes.namespaces.add(namespace);
+            return invocation.proceed();
+        }
+        @Override
+        public Object plugin(Object target) {
+            return Plugin.wrap(target, this);
+        }
+        @Override
+        public void setProperties(Properties properties) {
+        }
+    }
+    /**
+     * @分段的LRU缓存
+     */
+    private final Map<CacheKey, CachedResult>[] segments;
+    /**
+     * @存活时间
+     */
+    private final long ttlNanos;
+    /**
+     * @(分片,命名空间)的版本号
+     */
+    private final ConcurrentMap<NamespaceKey, AtomicLong> generations = new ConcurrentHashMap<NamespaceKey, AtomicLong>();
+    /**
+     * @事务连接与待定的写操作
+     */
+    private final ConcurrentMap<Object, PendingWrites> pending = new ConcurrentHashMap<Object, PendingWrites>();
+    /**
+     * @命中次数
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+    /**
+     * @未命中次数
+     */
+    private final AtomicLong missCount = new AtomicLong();
+    /**
+     * @失效次数
+     */
+    private final AtomicLong invalidationCount = new AtomicLong();
+    /**
+     * 构造函数.
+     * @param maxEntries 最大缓存项数
+     * @param ttl 存活时间
+     * @param unit 时间单位
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ShardResultCache(int maxEntries, long ttl, TimeUnit unit) {
+        if (maxEntries <= 0 || ttl <= 0 || unit == null) {
+            throw new IllegalArgumentException("maxEntries 与 ttl 必须大于0");
+        }
+        this.ttlNanos = unit.toNanos(ttl);
+        final int segmentSize = Math.max(1, (maxEntries + SEGMENTS - 1) / SEGMENTS);
+        this.segments = new Map[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new LinkedHashMap<CacheKey, CachedResult>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<CacheKey, CachedResult> eldest) {
+                    return size() > segmentSize;
+                }
+            };
+        }
+    }
+    /**
+     * 经过缓存查询.
+     * @param <E> e
+     * @param sqlSessionTemplate 分片sqlSessionTemplate
+     * @param dataSource 分片数据源
+     * @param statement 语句id
+     * @param parameter 参数
+     * @return 只读结果
+     */
+    @SuppressWarnings("unchecked")
+    public <E> List<E> selectList(SqlSessionTemplate sqlSessionTemplate, DataSource dataSource, String statement, Object parameter) {
+        String namespace = namespace(statement);
+        Object connectionHolder = TransactionSynchronizationManager.getResource(dataSource);
+        boolean inTransaction = connectionHolder != null || TransactionSynchronizationManager.getResource(shardDataSource(sqlSessionTemplate, dataSource)) != null;
+        if (connectionHolder != null) {
+            PendingWrites writes = pending.get(connectionHolder);
+            if (writes != null && writes.namespaces.contains(namespace)) {
+                return sqlSessionTemplate.selectList(statement, parameter);
+            }
+        }
+        AtomicLong generation = generation(dataSource, namespace);
+        long expected = generation.get();
+        CacheKey key = new CacheKey(dataSource, statement, parameter);
+        Map<CacheKey, CachedResult> segment = segments[(key.hash ^ (key.hash >>> 16)) & (SEGMENTS - 1)];
+        long now = System.nanoTime();
+        synchronized (segment) {
+            CachedResult entry = segment.get(key);
+            if (entry != null) {
+                if (entry.generation == expected && entry.expiresNanos - now > 0) {
+                    hitCount.incrementAndGet();
+                    return (List<E>) entry.value;
+                }
+                segment.remove(key);
+            }
+        }
+        missCount.incrementAndGet();
+        List<E> result = Collections.unmodifiableList(new ArrayList<E>(sqlSessionTemplate.<E>selectList(statement, parameter)));
+        if (!inTransaction && generation.get() == expected) {
+            synchronized (segment) {
+                segment.put(key, new CachedResult(result, expected, now + ttlNanos));
+            }
+        }
+        return result;
+    }
+    /**
+     * 使分片命名空间的缓存失效.
+     * @param dataSource 分片数据源
+     * @param namespace 命名空间
+     */
+    public void invalidate(DataSource dataSource, String namespace) {
+        generation(dataSource, namespace).incrementAndGet();
+        invalidationCount.incrementAndGet();
+    }
+    /**
+     * 清空缓存.
+     */
+    public void clear() {
+        for (AtomicLong generation : generations.values()) {
+            generation.incrementAndGet();
+        }
+        for (Map<CacheKey, CachedResult> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+    /**
+     * @return 命中次数
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+    /**
+     * @return 未命中次数
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+    /**
+     * @return 失效次数
+     */
+    public long getInvalidationCount() {
+        return invalidationCount.get();
+    }
+    /**
+     * 为分片会话的执行器加上写操作记录.
+     * @param executor 执行器
+     * @param dataSource 分片数据源
+     * @return 包装后的执行器
+     */
+    Executor wrap(Executor executor, DataSource dataSource) {
+        return (Executor) new WriteInterceptor(dataSource).plugin(executor);
+    }
+    /**
+     * 取出有待定写操作的事务连接,须在事务线程上、链式事务结束前调用.
+     * @param snapshot 数据源快照
+     * @return 事务连接,没有时返回null
+     */
+    List<Object> collectPending(DataSourceRegistry snapshot) {
+        if (pending.isEmpty()) {
+            return null;
+        }
+        List<Object> connectionHolders = null;
+        for (int slot = 0; slot < snapshot.size(); slot++) {
+            Object connectionHolder = TransactionSynchronizationManager.getResource(snapshot.getDataSource(slot));
+            if (connectionHolder != null && pending.containsKey(connectionHolder)) {
+                if (connectionHolders == null) {
+                    connectionHolders = new ArrayList<Object>(2);
+                }
+                connectionHolders.add(connectionHolder);
+            }
+        }
+        return connectionHolders;
+    }
+    /**
+     * 事务结束,提交时使写过的命名空间失效,回滚时丢弃. 已由事务同步处理过的事务连接忽略.
+     * @param connectionHolders {@link #collectPending(DataSourceRegistry)}返回的事务连接
+     * @param committed 是否已提交
+     */
+    void complete(List<Object> connectionHolders, boolean committed) {
+        for (Object connectionHolder : connectionHolders) {
+            PendingWrites writes = pending.remove(connectionHolder);
+            if (writes != null && committed) {
+                synchronized (writes.namespaces) {
+                    for (String namespace : writes.namespaces) {
+                        invalidate(writes.dataSource, namespace);
+                    }
+                }
+            }
+        }
+    }
+    /**
+     * 分片命名空间的版本号.
+     * @param dataSource 分片数据源
+     * @param namespace 命名空间
+     * @return 版本号
+     */
+    private AtomicLong generation(DataSource dataSource, String namespace) {
+        NamespaceKey key = new NamespaceKey(dataSource, namespace);
+        AtomicLong generation = generations.get(key);
+        if (generation == null) {
+            AtomicLong newGeneration = new AtomicLong();
+            generation = generations.putIfAbsent(key, newGeneration);
+            if (generation == null) {
+                generation = newGeneration;
+            }
+        }
+        return generation;
+    }
+    /**
+     * 查询实际使用的分片数据源,只读事务中可能是从库.
+     * @param sqlSessionTemplate 分片sqlSessionTemplate
+     * @param dataSource 缓存使用的分片数据源
+     * @return 数据源
+     */
+    private static DataSource shardDataSource(SqlSessionTemplate sqlSessionTemplate, DataSource dataSource) {
+        if (sqlSessionTemplate.getSqlSessionFactory() instanceof ShardSqlSessionFactory) {
+            return ((ShardSqlSessionFactory) sqlSessionTemplate.getSqlSessionFactory()).getDataSource();
+        }
+        return dataSource;
+    }
+    /**
+     * 语句id所在的命名空间.
+     * @param statement 语句id
+     * @return 命名空间
+     */
+    private static String namespace(String statement) {
+        int index = statement.lastIndexOf('.');
+        return index < 0 ? statement : statement.substring(0, index);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * 文件名：ShardSqlSessionFactory.java
+ * 描述： ShardSqlSessionFactory.java
+ * 修改人：zhengmo
+ * 修改时间：2015年10月26日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.util;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.apache.ibatis.exceptions.ExceptionFactory;
+import org.apache.ibatis.executor.ErrorContext;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.ExecutorType;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.session.TransactionIsolationLevel;
+import org.apache.ibatis.session.defaults.DefaultSqlSession;
+import org.apache.ibatis.transaction.Transaction;
+import org.apache.ibatis.transaction.TransactionFactory;
+import org.mybatis.spring.transaction.SpringManagedTransactionFactory;
+
+/**
+ * 共享已解析配置的分片SqlSessionFactory.
+ *
+ * <pre>
+ * 所有分片共用同一份解析好的{@link Configuration}(mapped statements,resultMap等),
+ * 仅打开会话时使用本分片自己的数据源,因此新增分片无需再次解析mapper XML.
+ * 共享配置的二级缓存已关闭,否则mapper的&lt;cache/&gt;会把一个分片的查询结果返回给另一个分片.
+ * </pre>
+ * @author zhengmo
+ */
+class ShardSqlSessionFactory implements SqlSessionFactory {
+    /**
+     * @共享的配置
+     */
+    private final Configuration configuration;
+    /**
+     * @分片数据源
+     */
+    private final DataSource dataSource;
+    /**
+     * @事务工厂
+     */
+    private final TransactionFactory transactionFactory;
+    /**
+     * @查询结果缓存,未设置时为null
+     */
+    private final AtomicReference<ShardResultCache> resultCache;
+    /**
+     * 构造函数.
+     * @param configuration 共享的配置
+     * @param dataSource 分片数据源
+     * @param resultCache 查询结果缓存,打开会话时设置了缓存则记录写操作
+     */
+    ShardSqlSessionFactory(Configuration configuration, DataSource dataSource, AtomicReference<ShardResultCache> resultCache) {
+        this.configuration = configuration;
+        this.dataSource = dataSource;
+        this.resultCache = resultCache;
+        if (configuration.getEnvironment() != null && configuration.getEnvironment().getTransactionFactory() != null) {
+            this.transactionFactory = configuration.getEnvironment().getTransactionFactory();
+        } else {
+            this.transactionFactory = new SpringManagedTransactionFactory();
+        }
+    }
+    /**
+     * 获取分片数据源.
+     * @return 数据源
+     */
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+    @Override
+    public Configuration getConfiguration() {
+        return configuration;
+    }
+    @Override
+    public SqlSession openSession() {
+        return openSessionFromDataSource(configuration.getDefaultExecutorType(), null, false);
+    }
+    @Override
+    public SqlSession openSession(boolean autoCommit) {
+        return openSessionFromDataSource(configuration.getDefaultExecutorType(), null, autoCommit);
+    }
+    @Override
+    public SqlSession openSession(ExecutorType execType) {
+        return openSessionFromDataSource(execType, null, false);
+    }
+    @Override
+    public SqlSession openSession(TransactionIsolationLevel level) {
+        return openSessionFromDataSource(configuration.getDefaultExecutorType(), level, false);
+    }
+    @Override
+    public SqlSession openSession(ExecutorType execType, TransactionIsolationLevel level) {
+        return openSessionFromDataSource(execType, level, false);
+    }
+    @Override
+    public SqlSession openSession(ExecutorType execType, boolean autoCommit) {
+        return openSessionFromDataSource(execType, null, autoCommit);
+    }
+    @Override
+    public SqlSession openSession(Connection connection) {
+        return openSessionFromConnection(configuration.getDefaultExecutorType(), connection);
+    }
+    @Override
+    public SqlSession openSession(ExecutorType execType, Connection connection) {
+        return openSessionFromConnection(execType, connection);
+    }
+    /**
+     * 从分片数据源打开会话.
+     * @param execType 执行器类型
+     * @param level 隔离级别
+     * @param autoCommit 是否自动提交
+     * @return SqlSession
+     */
+    private SqlSession openSessionFromDataSource(ExecutorType execType, TransactionIsolationLevel level, boolean autoCommit) {
+        Transaction tx = null;
+        try {
+            tx = transactionFactory.newTransaction(dataSource, level, autoCommit);
+            Executor executor = wrap(configuration.newExecutor(tx, execType, autoCommit));
+            return new DefaultSqlSession(configuration, executor);
+        } catch (Exception e) {
+            closeTransaction(tx);
+            throw ExceptionFactory.wrapException("Error opening session.  Cause: " + e, e);
+        } finally {
+            ErrorContext.instance().reset();
+        }
+    }
+    /**
+     * 从已有连接打开会话.
+     * @param execType 执行器类型
+     * @param connection 连接
+     * @return SqlSession
+     */
+    private SqlSession openSessionFromConnection(ExecutorType execType, Connection connection) {
+        try {
+            boolean autoCommit;
+            try {
+                autoCommit = connection.getAutoCommit();
+            } catch (SQLException e) {
+                autoCommit = true;
+            }
+            Transaction tx = transactionFactory.newTransaction(connection);
+            Executor executor = wrap(configuration.newExecutor(tx, execType, autoCommit));
+            return new DefaultSqlSession(configuration, executor);
+        } catch (Exception e) {
+            throw ExceptionFactory.wrapException("Error opening session.  Cause: " + e, e);
+        } finally {
+            ErrorContext.instance().reset();
+        }
+    }
+    /**
+     * 设置了查询结果缓存时记录执行器的写操作.
+     * @param executor 执行器
+     * @return 执行器
+     */
+    private Executor wrap(Executor executor) {
+        ShardResultCache cache = resultCache.get();
+        return cache == null ? executor : cache.wrap(executor, dataSource);
+    }
+    /**
+     * 关闭事务.
+     * @param tx 事务
+     */
+    private void closeTransaction(Transaction tx) {
+        if (tx != null) {
+            try {
+                tx.close();
+            } catch (SQLException ignore) {
+                // Intentionally ignore. Prefer previous error.
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * 文件名：SingleParticipantTransactionManager.java
+ * 描述： SingleParticipantTransactionManager.java
+ * 修改人：zhengmo
+ * 修改时间：2015年11月11日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.HeuristicCompletionException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.UnexpectedRollbackException;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.zhengmo.data.transaction.ChainedTransactionListener;
+import com.zhengmo.data.transaction.ChainedTransactionManager;
+
+/**
+ * 只有一个参与者时代替{@link ChainedTransactionManager}的事务管理器.
+ *
+ * <pre>
+ * 直接返回并使用参与者自己的事务状态,不创建MultiTransactionStatus. 异常转换,刷新回调与监听器回调与只有一个参与者的链式事务完全一致:
+ * 开启失败抛出{@link CannotCreateTransactionException},提交失败抛出{@link HeuristicCompletionException#STATE_ROLLED_BACK},
+ * 回滚失败抛出{@link UnexpectedRollbackException},提交前刷新失败时回滚并抛出原异常.
+ * 刷新回调以事务状态为key绑定在当前线程上,只在注册过时才有开销.
+ * </pre>
+ * @author zhengmo
+ */
+final class SingleParticipantTransactionManager implements PlatformTransactionManager {
+    /**
+     * 事务结束后回调监听器的整体耗时.
+     * @author zhengmo
+     */
+    private final class CompletionSynchronization extends TransactionSynchronizationAdapter {
+        /**
+         * 开启时间.
+         */
+        private final long startNanos;
+        /**
+         * 构造函数.
+         * @param startNanos 开启时间
+         */
+        CompletionSynchronization(long startNanos) {
+            this.startNanos = startNanos;
+        }
+        @Override
+        public void afterCompletion(int status) {
+            int state = status == TransactionSynchronization.STATUS_COMMITTED ? HeuristicCompletionException.STATE_COMMITTED : HeuristicCompletionException.STATE_ROLLED_BACK;
+            listener.afterCompletion(System.nanoTime() - startNanos, state, 0);
+        }
+    }
+    /**
+     * @日志
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SingleParticipantTransactionManager.class);
+    /**
+     * @槽位
+     */
+    private static final int SLOT = 0;
+    /**
+     * @参与者的事务管理器
+     */
+    private final PlatformTransactionManager transactionManager;
+    /**
+     * @监听器,可为null
+     */
+    private final ChainedTransactionListener listener;
+    /**
+     * 构造函数.
+     * @param transactionManager 参与者的事务管理器
+     * @param listener 监听器,可为null
+     */
+    SingleParticipantTransactionManager(PlatformTransactionManager transactionManager, ChainedTransactionListener listener) {
+        this.transactionManager = transactionManager;
+        this.listener = listener;
+    }
+    @Override
+    public TransactionStatus getTransaction(TransactionDefinition definition) throws TransactionException {
+        long start = listener == null ? 0L : System.nanoTime();
+        TransactionStatus status;
+        try {
+            status = transactionManager.getTransaction(definition);
+        } catch (Exception ex) {
+            if (listener != null) {
+                long nanos = System.nanoTime() - start;
+                listener.afterBegin(SLOT, nanos, false);
+                listener.afterCompletion(nanos, HeuristicCompletionException.STATE_ROLLED_BACK, 0);
+            }
+            throw new CannotCreateTransactionException(ex.getMessage(), ex);
+        }
+        if (listener != null) {
+            listener.afterBegin(SLOT, System.nanoTime() - start, true);
+            if (TransactionSynchronizationManager.isSynchronizationActive()) {
+                TransactionSynchronizationManager.registerSynchronization(new CompletionSynchronization(start));
+            }
+        }
+        return status;
+    }
+    @Override
+    public void commit(TransactionStatus status) throws TransactionException {
+        @SuppressWarnings("unchecked")
+        List<Runnable> callbacks = (List<Runnable>) TransactionSynchronizationManager.getResource(status);
+        if (callbacks != null) {
+            TransactionSynchronizationManager.unbindResource(status);
+            try {
+                for (Runnable callback : callbacks) {
+                    callback.run();
+                }
+            } catch (RuntimeException ex) {
+                rollbackOnFlushException(status, ex);
+                throw ex;
+            } catch (Error err) {
+                rollbackOnFlushException(status, err);
+                throw err;
+            }
+        }
+        long start = listener == null ? 0L : System.nanoTime();
+        boolean success = false;
+        try {
+            transactionManager.commit(status);
+            success = true;
+        } catch (Exception ex) {
+            throw new HeuristicCompletionException(HeuristicCompletionException.STATE_ROLLED_BACK, ex);
+        } finally {
+            if (listener != null) {
+                listener.afterCommit(SLOT, System.nanoTime() - start, success);
+            }
+        }
+    }
+    @Override
+    public void rollback(TransactionStatus status) throws TransactionException {
+        TransactionSynchronizationManager.unbindResourceIfPossible(status);
+        long start = listener == null ? 0L : System.nanoTime();
+        boolean success = false;
+        try {
+            transactionManager.rollback(status);
+            success = true;
+        } catch (Exception ex) {
+            throw new UnexpectedRollbackException("Rollback exception, originated at (" + transactionManager + ") " + ex.getMessage(), ex);
+        } finally {
+            if (listener != null) {
+                listener.afterRollback(SLOT, System.nanoTime() - start, success);
+            }
+        }
+    }
+    /**
+     * 注册刷新回调,在提交前执行.
+     * @param status {@link #getTransaction(TransactionDefinition)}返回的事务状态
+     * @param callback 回调
+     */
+    void registerFlushCallback(TransactionStatus status, Runnable callback) {
+        @SuppressWarnings("unchecked")
+        List<Runnable> callbacks = (List<Runnable>) TransactionSynchronizationManager.getResource(status);
+        if (callbacks == null) {
+            callbacks = new ArrayList<Runnable>(2);
+            TransactionSynchronizationManager.bindResource(status, callbacks);
+        }
+        callbacks.add(callback);
+    }
+    /**
+     * 提交前刷新失败,回滚事务. 回滚也失败时抛出回滚异常.
+     * @param status 事务状态
+     * @param ex 刷新异常
+     */
+    private void rollbackOnFlushException(TransactionStatus status, Throwable ex) {
+        try {
+            rollback(status);
+        } catch (TransactionException ex2) {
+            LOGGER.error("Flush exception overridden by rollback exception", ex);
+            throw ex2;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * 文件名：TemplateCache.java
+ * 描述： TemplateCache.java
+ * 修改人：zhengmo
+ * 修改时间：2015年11月20日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mybatis.spring.SqlSessionTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 有容量上限与空闲淘汰的sqlSessionTemplate缓存.
+ *
+ * <pre>
+ * 读取只是一次并发map查找加访问时间更新. 超过容量时淘汰最久未访问的条目,空闲超过idleNanos的条目在定期清理时淘汰.
+ * 只淘汰生成的分片模板({@link ShardSqlSessionFactory}),它们可以随时重新生成;手工放入的模板不淘汰.
+ * 进行中的链式事务使用的条目被{@link #pin(Entry)},结束前不淘汰,保证同一事务内始终使用同一个模板(批量语句在其会话上累积);
+ * 淘汰时把固定计数置为-1,此后不能再固定,与固定之间无需加锁.
+ * 默认不限容量也不做空闲淘汰.
+ * </pre>
+ * @author zhengmo
+ * @param <K> key类型
+ */
+final class TemplateCache<K> {
+    /**
+     * 缓存条目.
+     * @author zhengmo
+     */
+    static final class Entry {
+        /**
+         * 模板.
+         */
+        private final SqlSessionTemplate template;
+        /**
+         * 是否可淘汰.
+         */
+        private final boolean evictable;
+        /**
+         * 使用中的链式事务数量,已淘汰为-1.
+         */
+        private final AtomicInteger pins = new AtomicInteger();
+        /**
+         * 最近访问时间({@link System#nanoTime()}).
+         */
+        private volatile long accessNanos = System.nanoTime();
+        /**
+         * 构造函数.
+         * @param template 模板
+         */
+        Entry(SqlSessionTemplate template) {
+            this.template = template;
+            this.evictable = template.getSqlSessionFactory() instanceof ShardSqlSessionFactory;
+        }
+        /**
+         * @return 模板
+         */
+        SqlSessionTemplate getTemplate() {
+            return template;
+        }
+        /**
+         * 释放一次固定.
+         */
+        void unpin() {
+            pins.decrementAndGet();
+        }
+    }
+    /**
+     * @日志
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(TemplateCache.class);
+    /**
+     * @访问时间的更新精度,避免每次读取都写共享变量
+     */
+    private static final long TOUCH_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    /**
+     * @条目
+     */
+    private final ConcurrentMap<K, Entry> entries = new ConcurrentHashMap<K, Entry>();
+    /**
+     * @下次空闲清理时间({@link System#nanoTime()})
+     */
+    private final AtomicLong nextSweepNanos = new AtomicLong();
+    /**
+     * @容量上限
+     */
+    private volatile int maxSize = Integer.MAX_VALUE;
+    /**
+     * @空闲淘汰时间,纳秒,0为不淘汰
+     */
+    private volatile long idleNanos;
+    /**
+     * @淘汰监听器,可为null
+     */
+    private volatile TemplateEvictionListener listener;
+    /**
+     * 设置容量上限与空闲淘汰时间,并立即按新限制清理.
+     * @param newMaxSize 容量上限
+     * @param newIdleNanos 空闲淘汰时间,0为不淘汰
+     * @param newListener 淘汰监听器
+     */
+    void configure(int newMaxSize, long newIdleNanos, TemplateEvictionListener newListener) {
+        this.maxSize = newMaxSize;
+        this.idleNanos = newIdleNanos;
+        this.listener = newListener;
+        evict();
+    }
+    /**
+     * 获取模板.
+     * @param key key
+     * @return 模板,不存在返回null
+     */
+    SqlSessionTemplate get(K key) {
+        Entry entry = getEntry(key);
+        return entry == null ? null : entry.template;
+    }
+    /**
+     * 获取条目并更新访问时间,到清理周期时顺带清理空闲条目.
+     * @param key key
+     * @return 条目,不存在返回null
+     */
+    Entry getEntry(K key) {
+        Entry entry = entries.get(key);
+        long now = System.nanoTime();
+        if (entry != null && now - entry.accessNanos > TOUCH_NANOS) {
+            entry.accessNanos = now;
+        }
+        long idle = idleNanos;
+        if (idle > 0) {
+            long next = nextSweepNanos.get();
+            if (now - next >= 0 && nextSweepNanos.compareAndSet(next, now + idle / 2)) {
+                evict();
+            }
+        }
+        return entry;
+    }
+    /**
+     * 不存在时放入.
+     * @param key key
+     * @param template 模板
+     * @return 已存在的模板,放入成功返回null
+     */
+    SqlSessionTemplate putIfAbsent(K key, SqlSessionTemplate template) {
+        Entry existing = entries.putIfAbsent(key, new Entry(template));
+        if (existing != null) {
+            return existing.template;
+        }
+        if (entries.size() > maxSize) {
+            evict();
+        }
+        return null;
+    }
+    /**
+     * 放入,替换已有的.
+     * @param key key
+     * @param template 模板
+     */
+    void put(K key, SqlSessionTemplate template) {
+        entries.put(key, new Entry(template));
+        if (entries.size() > maxSize) {
+            evict();
+        }
+    }
+    /**
+     * 替换为新模板.
+     * @param key key
+     * @param oldTemplate 原模板
+     * @param newTemplate 新模板
+     * @return 是否替换
+     */
+    boolean replace(K key, SqlSessionTemplate oldTemplate, SqlSessionTemplate newTemplate) {
+        Entry entry = entries.get(key);
+        return entry != null && entry.template == oldTemplate && entries.replace(key, entry, new Entry(newTemplate));
+    }
+    /**
+     * 移除.
+     * @param key key
+     * @param template 模板
+     * @return 是否移除
+     */
+    boolean remove(K key, SqlSessionTemplate template) {
+        Entry entry = entries.get(key);
+        return entry != null && entry.template == template && entries.remove(key, entry);
+    }
+    /**
+     * 移除.
+     * @param key key
+     * @return 被移除的模板,不存在返回null
+     */
+    SqlSessionTemplate remove(K key) {
+        Entry entry = entries.remove(key);
+        return entry == null ? null : entry.template;
+    }
+    /**
+     * 当前内容的快照.
+     * @return key与模板
+     */
+    Map<K, SqlSessionTemplate> snapshot() {
+        Map<K, SqlSessionTemplate> map = new LinkedHashMap<K, SqlSessionTemplate>(entries.size() * 2);
+        for (Map.Entry<K, Entry> entry : entries.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().template);
+        }
+        return map;
+    }
+    /**
+     * 条目数量.
+     * @return 数量
+     */
+    int size() {
+        return entries.size();
+    }
+    /**
+     * 固定条目,直到{@link Entry#unpin()}前不淘汰.
+     * @param entry 条目
+     * @return 是否固定;条目已被淘汰时返回false,调用方应重新生成模板
+     */
+    boolean pin(Entry entry) {
+        while (true) {
+            int pins = entry.pins.get();
+            if (pins < 0) {
+                return false;
+            }
+            if (entry.pins.compareAndSet(pins, pins + 1)) {
+                return true;
+            }
+        }
+    }
+    /**
+     * 淘汰空闲条目,再按最久未访问淘汰到容量以内. 固定中的与不可淘汰的条目跳过.
+     */
+    synchronized void evict() {
+        long idle = idleNanos;
+        int limit = maxSize;
+        if (idle <= 0 && entries.size() <= limit) {
+            return;
+        }
+        long now = System.nanoTime();
+        List<Map.Entry<K, Entry>> candidates = new ArrayList<Map.Entry<K, Entry>>();
+        for (Map.Entry<K, Entry> entry : entries.entrySet()) {
+            Entry value = entry.getValue();
+            if (!value.evictable || value.pins.get() > 0) {
+                continue;
+            }
+            if (idle > 0 && now - value.accessNanos > idle) {
+                evict(entry.getKey(), value);
+            } else {
+                candidates.add(entry);
+            }
+        }
+        int excess = entries.size() - limit;
+        while (excess > 0 && !candidates.isEmpty()) {
+            int oldest = 0;
+            for (int i = 1; i < candidates.size(); i++) {
+                if (candidates.get(i).getValue().accessNanos - candidates.get(oldest).getValue().accessNanos < 0) {
+                    oldest = i;
+                }
+            }
+            Map.Entry<K, Entry> entry = candidates.remove(oldest);
+            if (evict(entry.getKey(), entry.getValue())) {
+                excess--;
+            }
+        }
+    }
+    /**
+     * 淘汰一个条目并回调监听器.
+     * @param key key
+     * @param entry 条目
+     * @return 是否淘汰
+     */
+    private boolean evict(K key, Entry entry) {
+        if (!entry.pins.compareAndSet(0, -1)) {
+            return false;
+        }
+        entries.remove(key, entry);
+        TemplateEvictionListener evictionListener = listener;
+        if (evictionListener != null) {
+            try {
+                evictionListener.afterEviction(((ShardSqlSessionFactory) entry.template.getSqlSessionFactory()).getDataSource());
+            } catch (RuntimeException e) {
+                LOGGER.warn("Template eviction listener exception " + e.getMessage(), e);
+            }
+        }
+        return true;
+    }
+}
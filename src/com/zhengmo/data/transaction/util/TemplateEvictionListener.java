@@ -0,0 +1,23 @@
+/*
+ * 文件名：TemplateEvictionListener.java
+ * 描述： TemplateEvictionListener.java
+ * 修改人：zhengmo
+ * 修改时间：2015年11月20日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.util;
+
+import javax.sql.DataSource;
+
+/**
+ * 分片sqlSessionTemplate淘汰监听器接口.
+ * @author zhengmo
+ */
+public interface TemplateEvictionListener {
+    /**
+     * 数据源的sqlSessionTemplate因容量或空闲被淘汰后,在淘汰线程上回调. 数据源仍在注册表中,再次访问时重新生成模板,
+     * 因此只能释放可以自动恢复的资源,如收缩连接池的空闲连接,不能关闭数据源.
+     * @param dataSource 数据源(主库或从库)
+     */
+    public void afterEviction(DataSource dataSource);
+}
@@ -0,0 +1,232 @@
+/*
+ * 文件名：TransactionRetryPolicy.java
+ * 描述： TransactionRetryPolicy.java
+ * 修改人：zhengmo
+ * 修改时间：2015年11月13日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.util;
+
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.transaction.HeuristicCompletionException;
+
+/**
+ * 链式事务重试策略.
+ *
+ * <pre>
+ * 事务因死锁(MySQL 1213,SQLState 40001)或锁等待超时(MySQL 1205)回滚时,按指数退避加随机抖动(full jitter)等待后重新执行回调.
+ * 重试受预算限制:每个事务存入ratio个令牌,每次重试取出一个,令牌最多maxBudget个;令牌不足时不再重试,避免高冲突时重试放大负载.
+ * 提交阶段失败且可能已有参与者提交(非{@link HeuristicCompletionException#STATE_ROLLED_BACK})时从不重试.
+ * 实例线程安全,可被多个{@link ChainedTransactionManagerUtil}共享.
+ * </pre>
+ * @author zhengmo
+ */
+public class TransactionRetryPolicy {
+    /**
+     * 可重试的原因.
+     * @author zhengmo
+     */
+    public enum Cause {
+        /**
+         * 死锁.
+         */
+        DEADLOCK,
+        /**
+         * 锁等待超时.
+         */
+        LOCK_WAIT_TIMEOUT
+    }
+    /**
+     * @MySQL死锁错误码
+     */
+    private static final int ER_LOCK_DEADLOCK = 1213;
+    /**
+     * @MySQL锁等待超时错误码
+     */
+    private static final int ER_LOCK_WAIT_TIMEOUT = 1205;
+    /**
+     * @令牌精度
+     */
+    private static final long TOKEN = 1000L;
+    /**
+     * @最多执行次数,包括第一次
+     */
+    private final int maxAttempts;
+    /**
+     * @第一次重试的退避上限,纳秒
+     */
+    private final long baseBackoffNanos;
+    /**
+     * @退避上限,纳秒
+     */
+    private final long maxBackoffNanos;
+    /**
+     * @每个事务存入的令牌数(乘以TOKEN)
+     */
+    private volatile long ratioTokens = TOKEN / 10;
+    /**
+     * @令牌上限(乘以TOKEN)
+     */
+    private volatile long maxTokens = 10 * TOKEN;
+    /**
+     * @当前令牌(乘以TOKEN)
+     */
+    private final AtomicLong tokens = new AtomicLong(10 * TOKEN);
+    /**
+     * @按原因的重试次数
+     */
+    private final AtomicLongArray retries = new AtomicLongArray(Cause.values().length);
+    /**
+     * @按原因的达到最多次数后放弃次数
+     */
+    private final AtomicLongArray exhausted = new AtomicLongArray(Cause.values().length);
+    /**
+     * @按原因的预算不足放弃次数
+     */
+    private final AtomicLongArray budgetExhausted = new AtomicLongArray(Cause.values().length);
+    /**
+     * 构造函数.
+     * @param maxAttempts 最多执行次数,包括第一次
+     * @param baseBackoff 第一次重试的退避上限
+     * @param maxBackoff 退避上限
+     * @param unit 时间单位
+     */
+    public TransactionRetryPolicy(int maxAttempts, long baseBackoff, long maxBackoff, TimeUnit unit) {
+        if (maxAttempts < 1 || baseBackoff < 0 || maxBackoff < baseBackoff) {
+            throw new IllegalArgumentException("maxAttempts 必须大于0且 0 <= baseBackoff <= maxBackoff");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseBackoffNanos = unit.toNanos(baseBackoff);
+        this.maxBackoffNanos = unit.toNanos(maxBackoff);
+    }
+    /**
+     * 设置重试预算.
+     * @param ratio 每个事务增加的可重试次数,如0.1表示重试最多使负载增加10%
+     * @param maxBudget 最多累积的可重试次数
+     */
+    public void setBudget(double ratio, int maxBudget) {
+        if (ratio < 0 || maxBudget < 0) {
+            throw new IllegalArgumentException("ratio 与 maxBudget 不能小于0");
+        }
+        this.ratioTokens = (long) (ratio * TOKEN);
+        this.maxTokens = maxBudget * TOKEN;
+        tokens.set(Math.min(tokens.get(), maxTokens));
+    }
+    /**
+     * 判断事务失败是否可重试. 沿异常链查找{@link SQLException},按错误码与SQLState分类.
+     * @param ex 异常
+     * @return 原因,不可重试返回null
+     */
+    public Cause classify(Throwable ex) {
+        if (ex instanceof HeuristicCompletionException && ((HeuristicCompletionException) ex).getOutcomeState() != HeuristicCompletionException.STATE_ROLLED_BACK) {
+            return null;
+        }
+        for (Throwable cause = ex; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof SQLException) {
+                for (SQLException sqlException = (SQLException) cause; sqlException != null; sqlException = sqlException.getNextException()) {
+                    if (sqlException.getErrorCode() == ER_LOCK_DEADLOCK || "40001".equals(sqlException.getSQLState())) {
+                        return Cause.DEADLOCK;
+                    }
+                    if (sqlException.getErrorCode() == ER_LOCK_WAIT_TIMEOUT) {
+                        return Cause.LOCK_WAIT_TIMEOUT;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+    /**
+     * 获取最多执行次数.
+     * @return 次数,包括第一次
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+    /**
+     * 获取重试次数.
+     * @param cause 原因
+     * @return 次数
+     */
+    public long getRetryCount(Cause cause) {
+        return retries.get(cause.ordinal());
+    }
+    /**
+     * 获取达到最多执行次数后仍失败的次数.
+     * @param cause 原因
+     * @return 次数
+     */
+    public long getExhaustedCount(Cause cause) {
+        return exhausted.get(cause.ordinal());
+    }
+    /**
+     * 获取因预算不足未重试的次数.
+     * @param cause 原因
+     * @return 次数
+     */
+    public long getBudgetExhaustedCount(Cause cause) {
+        return budgetExhausted.get(cause.ordinal());
+    }
+    /**
+     * 获取当前可重试次数.
+     * @return 次数
+     */
+    public long getAvailableBudget() {
+        return tokens.get() / TOKEN;
+    }
+    /**
+     * 开始一个事务,存入令牌.
+     */
+    void onTransaction() {
+        long ratio = ratioTokens;
+        if (ratio == 0) {
+            return;
+        }
+        while (true) {
+            long current = tokens.get();
+            long next = Math.min(maxTokens, current + ratio);
+            if (next == current || tokens.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+    /**
+     * 第attempt次执行失败后是否重试,重试时取出令牌并计数.
+     * @param cause 原因
+     * @param attempt 已执行次数
+     * @return boolean
+     */
+    boolean acquireRetry(Cause cause, int attempt) {
+        if (attempt >= maxAttempts) {
+            exhausted.incrementAndGet(cause.ordinal());
+            return false;
+        }
+        while (true) {
+            long current = tokens.get();
+            if (current < TOKEN) {
+                budgetExhausted.incrementAndGet(cause.ordinal());
+                return false;
+            }
+            if (tokens.compareAndSet(current, current - TOKEN)) {
+                retries.incrementAndGet(cause.ordinal());
+                return true;
+            }
+        }
+    }
+    /**
+     * 第attempt次执行失败后的退避时间,在0与指数上限之间随机.
+     * @param attempt 已执行次数
+     * @return 纳秒
+     */
+    long backoffNanos(int attempt) {
+        long ceiling = baseBackoffNanos << Math.min(attempt - 1, Long.numberOfLeadingZeros(baseBackoffNanos) - 1);
+        if (ceiling <= 0 || ceiling > maxBackoffNanos) {
+            ceiling = maxBackoffNanos;
+        }
+        return ceiling == 0 ? 0L : ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+}
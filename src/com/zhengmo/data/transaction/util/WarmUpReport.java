@@ -0,0 +1,79 @@
+/*
+ * 文件名：WarmUpReport.java
+ * 描述： WarmUpReport.java
+ * 修改人：zhengmo
+ * 修改时间：2015年11月19日
+ * 修改内容：新增
+ */
+package com.zhengmo.data.transaction.util;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 预热结果. 见{@link ChainedTransactionManagerUtil#warmUp(org.mybatis.spring.SqlSessionFactoryBean, java.util.Collection, int, long, java.util.concurrent.TimeUnit)}.
+ * @author zhengmo
+ */
+public final class WarmUpReport {
+    /**
+     * @预热成功的key
+     */
+    private final List<String> warmedKeys;
+    /**
+     * @预热失败的key与异常,超过时间预算的为{@link TimeoutException}
+     */
+    private final Map<String, Throwable> failures;
+    /**
+     * @耗时,毫秒
+     */
+    private final long elapsedMillis;
+    /**
+     * 构造函数.
+     * @param warmedKeys 预热成功的key
+     * @param failures 预热失败的key与异常
+     * @param elapsedMillis 耗时
+     */
+    WarmUpReport(List<String> warmedKeys, Map<String, Throwable> failures, long elapsedMillis) {
+        this.warmedKeys = Collections.unmodifiableList(warmedKeys);
+        this.failures = Collections.unmodifiableMap(failures);
+        this.elapsedMillis = elapsedMillis;
+    }
+    /**
+     * 是否全部预热成功.
+     * @return boolean
+     */
+    public boolean isReady() {
+        return failures.isEmpty();
+    }
+    /**
+     * @return 预热成功的key
+     */
+    public List<String> getWarmedKeys() {
+        return warmedKeys;
+    }
+    /**
+     * @return 预热失败的key与异常,超过时间预算的为{@link TimeoutException}
+     */
+    public Map<String, Throwable> getFailures() {
+        return failures;
+    }
+    /**
+     * @return 耗时,毫秒
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("WarmUpReport[ready=").append(isReady()).append(", elapsedMillis=").append(elapsedMillis).append(", warmed=").append(warmedKeys)
+                .append(", failures={");
+        boolean first = true;
+        for (Map.Entry<String, Throwable> entry : failures.entrySet()) {
+            sb.append(first ? "" : ", ").append(entry.getKey()).append('=').append(entry.getValue());
+            first = false;
+        }
+        return sb.append("}]").toString();
+    }
+}